@@ -0,0 +1,446 @@
+package zk.benchmarks;
+
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.zookeeper.ZooKeeper;
+import zk.classes.AddressBook;
+import zk.classes.AddressBookListener;
+import zk.classes.Endpoint;
+import zk.classes.EventDispatcher;
+import zk.classes.FaultTolerantCluster;
+import zk.classes.InMemoryMetricsSink;
+import zk.classes.Metrics;
+import zk.classes.OnElectionCallBack;
+import zk.classes.ServiceRegistry;
+import zk.classes.SessionListener;
+import zk.classes.ZKConnection;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A large-scale cluster simulator, to see how the election and the service registry behave with thousands of
+ * nodes without running thousands of JVMs.
+ * <p>
+ * Each simulated node has its own session (a ZKConnection, recovering the session if it expires), ServiceRegistry
+ * and FaultTolerantCluster, all against an in-process Zookeeper server, and registers itself with the registry
+ * while it's a follower (as ServiceRegistryMain does). The nodes are started and stopped on virtual threads, one
+ * per node. A scripted timeline of steps is then played, one step at a time:
+ * <ul>
+ *   <li>{@code join <n>} - start n new nodes</li>
+ *   <li>{@code leave <n>} - close the sessions of n random nodes</li>
+ *   <li>{@code leave-leader} - close the session of the leader</li>
+ *   <li>{@code partition <n>} - cut n random nodes off long enough for their sessions to expire (the sessions are
+ *       expired by the server), after which they recover a new session and join again</li>
+ *   <li>{@code wait <ms>} - pause the timeline</li>
+ * </ul>
+ * After each step (but 'wait'), the simulator waits for the cluster to converge, i.e. a single node believes it
+ * leads and the address book of every node lists all the other nodes, and reports for the step:
+ * the convergence time, the requests received by the server (and their rate), the watches set on the server,
+ * and the registry refreshes (and znode reads) it took all the nodes to converge. The refreshes grow with the
+ * number of nodes times the number of changes, which shows where the one-refresh-per-child-change design stops
+ * scaling. With --snapshot=true, the nodes read the snapshot of the address book published by the leader instead
+ * (see ServiceRegistry.withSnapshotReads()), i.e. a single read per node and change.
+ * <p>
+ * Usage: ClusterSimulator [--nodes=200] [--timeline="leave 10; leave-leader; partition 10; join 50"]
+ *                         [--timeline-file=path] [--session-timeout-ms=10000] [--snapshot=true] [--metrics=true]
+ *                         [--verbose=true]
+ * <br>
+ * The timeline starts with joining the initial nodes. The steps are separated by ';' or new lines (lines starting
+ * with '#' are ignored). With --metrics=true, the metrics of all the nodes (see Metrics) are printed as well.
+ * The console output of the nodes themselves (e.g. of the elections) is discarded, unless --verbose=true.
+ * <br>
+ * Note: the sessions' own threads (2 per Zookeeper client) and the nodes' dispatchers are still platform threads,
+ * and a blocking Zookeeper call pins the virtual thread it's made on to its carrier thread.
+ */
+public class ClusterSimulator {
+    private static final String CLUSTER_ROOT = "/simulated_cluster";
+    private static final String DEFAULT_TIMELINE = "leave 10; leave-leader; partition 10; join 50";
+    private static final long CONVERGENCE_TIMEOUT_MILLIS = 120000;
+    private static final long POLL_MILLIS = 10;
+    private static final int TICK_TIME = 200;
+    private static final String REFRESH_DURATION_METRIC = "registry.refresh.duration";
+    private static final String REFRESH_READS_METRIC = "registry.refresh.reads";
+
+    private final int initialNodes;
+    private final List<String> timeline;
+    private final int sessionTimeout;
+    private final boolean snapshotReads;
+    private final InMemoryMetricsSink metrics;
+
+    private EmbeddedZooKeeper server;
+    private final AtomicInteger nextNodeId = new AtomicInteger();
+    private final List<Node> live = new ArrayList<>(); // guarded by 'this'
+    private final List<StepResult> results = new ArrayList<>();
+
+    // the expected address book, as of the latest convergence check (only accessed by the timeline's thread)
+    private Set<String> expectedAddresses = Collections.emptySet();
+
+    ClusterSimulator(int initialNodes, List<String> timeline, int sessionTimeout, boolean snapshotReads,
+                     InMemoryMetricsSink metrics) {
+        this.initialNodes = initialNodes;
+        this.timeline = timeline;
+        this.sessionTimeout = sessionTimeout;
+        this.snapshotReads = snapshotReads;
+        this.metrics = metrics;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int initialNodes = 200;
+        String timeline = DEFAULT_TIMELINE;
+        int sessionTimeout = 10000;
+        boolean snapshotReads = false;
+        boolean printMetrics = false;
+        boolean verbose = false;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            switch (option[0]) {
+                case "--nodes" -> initialNodes = Integer.parseInt(option[1]);
+                case "--timeline" -> timeline = option[1];
+                case "--timeline-file" -> timeline = Files.readString(Path.of(option[1]));
+                case "--session-timeout-ms" -> sessionTimeout = Integer.parseInt(option[1]);
+                case "--snapshot" -> snapshotReads = Boolean.parseBoolean(option[1]);
+                case "--metrics" -> printMetrics = Boolean.parseBoolean(option[1]);
+                case "--verbose" -> verbose = Boolean.parseBoolean(option[1]);
+                default -> throw new IllegalArgumentException("Unknown option: " + option[0]);
+            }
+        }
+        if (initialNodes < 1) {
+            throw new IllegalArgumentException("At least 1 node is required");
+        }
+
+        List<String> steps = new ArrayList<>();
+        steps.add("join " + initialNodes);
+        for (String step : timeline.split("[;\n]")) {
+            step = step.trim();
+            if (!step.isEmpty() && !step.startsWith("#")) {
+                steps.add(step);
+            }
+        }
+
+        // configure the logger once, rather than by each node's registry
+        PropertyConfigurator.configure(ClusterSimulator.class.getClassLoader()
+                                                           .getResource("registry.log4j.properties"));
+        InMemoryMetricsSink metrics = new InMemoryMetricsSink();
+        Metrics.setSink(metrics); // to count the registry refreshes of each step
+
+        ClusterSimulator simulator = new ClusterSimulator(initialNodes, steps, sessionTimeout, snapshotReads,
+                                                          metrics);
+        PrintStream console = System.out;
+        if (!verbose) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the nodes' own console output
+        }
+        boolean converged;
+        try {
+            converged = simulator.run();
+        } finally {
+            System.setOut(console);
+        }
+        simulator.report();
+        if (printMetrics) {
+            System.out.println();
+            System.out.print(metrics.report());
+        }
+        System.exit(converged ? 0 : 1);
+    }
+
+    // play the timeline, returns whether every step has converged
+    boolean run() throws Exception {
+        server = new EmbeddedZooKeeper(TICK_TIME);
+        ZooKeeper setupClient = server.connect();
+        EmbeddedZooKeeper.createPath(setupClient, CLUSTER_ROOT);
+        setupClient.close();
+
+        boolean converged = true;
+        for (String step : timeline) {
+            String[] command = step.split("\\s+");
+            if (command[0].equals("wait")) {
+                Thread.sleep(Long.parseLong(command[1]));
+                continue;
+            }
+            StepResult result = measure(step, () -> {
+                switch (command[0]) {
+                    case "join" -> join(Integer.parseInt(command[1]));
+                    case "leave" -> leave(pickNodes(Integer.parseInt(command[1])));
+                    case "leave-leader" -> leave(pickLeader());
+                    case "partition" -> partition(pickNodes(Integer.parseInt(command[1])));
+                    default -> throw new IllegalArgumentException("Unknown step: " + step);
+                }
+            });
+            results.add(result);
+            if (result.convergenceNanos < 0) {
+                System.err.println("Step '" + step + "' did not converge within " + CONVERGENCE_TIMEOUT_MILLIS
+                                   + " ms, stopping the timeline");
+                converged = false;
+                break;
+            }
+        }
+        return converged;
+    }
+
+    private StepResult measure(String step, StepAction action) throws Exception {
+        long requestsBefore = server.getRequestCount();
+        long refreshesBefore = refreshCount();
+        long readsBefore = readCount();
+        long startNanos = System.nanoTime();
+
+        action.run();
+
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(CONVERGENCE_TIMEOUT_MILLIS);
+        boolean converged;
+        while (!(converged = isConverged()) && System.nanoTime() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        StepResult result = new StepResult(step);
+        result.nodes = liveNodes().size();
+        result.convergenceNanos = converged ? elapsedNanos : -1;
+        result.requests = server.getRequestCount() - requestsBefore;
+        result.requestRate = result.requests / (elapsedNanos / 1e9);
+        result.watches = server.getWatchCount();
+        result.refreshes = refreshCount() - refreshesBefore;
+        result.reads = readCount() - readsBefore;
+        return result;
+    }
+
+    // start the given number of nodes concurrently, each on its own virtual thread
+    private void join(int count) throws Exception {
+        List<Future<Node>> started = new ArrayList<>();
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < count; i++) {
+                started.add(threads.submit(() -> {
+                    Node node = new Node(nextNodeId.getAndIncrement());
+                    node.start();
+                    return node;
+                }));
+            }
+        } // waits for all the nodes to be started
+        for (Future<Node> node : started) {
+            Node joined = node.get();
+            synchronized (this) {
+                live.add(joined);
+            }
+        }
+    }
+
+    // stop the given nodes concurrently, each on its own virtual thread
+    private void leave(List<Node> nodes) {
+        synchronized (this) {
+            live.removeAll(nodes);
+        }
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Node node : nodes) {
+                threads.submit(() -> {
+                    node.stop();
+                    return null;
+                });
+            }
+        }
+    }
+
+    // expire the sessions of the given nodes, the nodes recover a new session as soon as they notice it
+    private void partition(List<Node> nodes) {
+        for (Node node : nodes) {
+            long sessionId = node.zooKeeper.getSessionId();
+            node.expiredSessionId = sessionId;
+            server.expireSession(sessionId);
+        }
+    }
+
+    private synchronized List<Node> pickNodes(int count) {
+        List<Node> shuffled = new ArrayList<>(live);
+        Collections.shuffle(shuffled, ThreadLocalRandom.current());
+        return new ArrayList<>(shuffled.subList(0, Math.min(count, shuffled.size())));
+    }
+
+    private synchronized List<Node> pickLeader() {
+        return live.stream().filter(node -> node.leading).toList();
+    }
+
+    private synchronized List<Node> liveNodes() {
+        return new ArrayList<>(live);
+    }
+
+    // whether a single node believes it leads, and every node's address book lists exactly all the other nodes.
+    // An address book already matched (against the same expected addresses) isn't compared again.
+    private boolean isConverged() {
+        List<Node> nodes = liveNodes();
+        List<Node> leaders = nodes.stream().filter(node -> node.leading).toList();
+        if (leaders.size() != 1) {
+            return false;
+        }
+        Set<String> expected = new HashSet<>();
+        for (Node node : nodes) {
+            if (node != leaders.get(0)) {
+                expected.add(node.address);
+            }
+        }
+        if (!expected.equals(expectedAddresses)) {
+            expectedAddresses = expected;
+        }
+        for (Node node : nodes) {
+            if (!node.isSettled()) {
+                return false;
+            }
+        }
+        for (Node node : nodes) {
+            AddressBook book = node.book;
+            if (book == null) {
+                return false;
+            }
+            if (book == node.matchedBook && node.matchedAddresses == expectedAddresses) {
+                continue;
+            }
+            if (book.size() != expectedAddresses.size() || !expectedAddresses.containsAll(book.getAddresses())) {
+                return false;
+            }
+            node.matchedBook = book;
+            node.matchedAddresses = expectedAddresses;
+        }
+        return true;
+    }
+
+    private long refreshCount() {
+        InMemoryMetricsSink.Histogram refreshes = metrics.getHistogram(REFRESH_DURATION_METRIC);
+        return refreshes != null ? refreshes.getCount() : 0;
+    }
+
+    private long readCount() {
+        InMemoryMetricsSink.Histogram reads = metrics.getHistogram(REFRESH_READS_METRIC);
+        return reads != null ? reads.getSum() : 0;
+    }
+
+    void report() {
+        System.out.println();
+        System.out.printf(Locale.ENGLISH, "Cluster simulator: %d initial nodes, session timeout: %d ms, reads: %s%n",
+                          initialNodes, sessionTimeout, snapshotReads ? "snapshot" : "direct");
+        System.out.printf(Locale.ENGLISH, "%-20s %6s %12s %10s %12s %8s %10s %12s%n", "step", "nodes",
+                          "converge ms", "zk ops", "zk ops/s", "watches", "refreshes", "znode reads");
+        for (StepResult result : results) {
+            System.out.printf(Locale.ENGLISH, "%-20s %6d %12s %10d %12.0f %8d %10d %12d%n", result.step,
+                              result.nodes, result.convergenceNanos < 0 ? "timeout"
+                                      : String.format(Locale.ENGLISH, "%.1f", result.convergenceNanos / 1e6),
+                              result.requests, result.requestRate, result.watches, result.refreshes, result.reads);
+        }
+    }
+
+    private interface StepAction {
+        void run() throws Exception;
+    }
+
+    private static class StepResult {
+        private final String step;
+        private int nodes;
+        private long convergenceNanos; // -1 if not converged
+        private long requests;
+        private double requestRate;
+        private int watches;
+        private long refreshes;
+        private long reads;
+
+        StepResult(String step) {
+            this.step = step;
+        }
+    }
+
+    // a simulated node, registered with the service registry while it's a follower
+    private class Node implements OnElectionCallBack, SessionListener, AddressBookListener {
+        private final int id;
+        private final String address;
+        private ZKConnection connection;
+        private EventDispatcher registryDispatcher;
+        private EventDispatcher clusterDispatcher;
+        private ServiceRegistry registry;
+        private volatile ZooKeeper zooKeeper; // replaced once the session has been recovered
+        private volatile boolean leading = false;
+        private volatile long roleSessionId = 0; // session the node has got its role (leader or follower) on
+        private volatile long expiredSessionId = 0; // latest session expired by a partition (0 if none)
+        private volatile AddressBook book;
+
+        // the latest address book found to match the expected addresses (only accessed by the timeline's thread)
+        private AddressBook matchedBook;
+        private Set<String> matchedAddresses;
+
+        Node(int id) {
+            this.id = id;
+            this.address = "http://node-" + id + ":8080";
+        }
+
+        void start() throws Exception {
+            connection = new ZKConnection(server.getConnectString(), sessionTimeout);
+            zooKeeper = connection.connect(sessionTimeout);
+            registryDispatcher = new EventDispatcher("sim-registry-" + id, 1, 50, 500);
+            clusterDispatcher = new EventDispatcher("sim-election-" + id);
+            registry = snapshotReads ? ServiceRegistry.withSnapshotReads(zooKeeper, null, registryDispatcher)
+                                     : new ServiceRegistry(zooKeeper, null, false, registryDispatcher);
+            FaultTolerantCluster cluster = new FaultTolerantCluster(CLUSTER_ROOT, zooKeeper, this,
+                                                                    clusterDispatcher);
+            connection.addSessionListener(this); // first, to know the new session before the node re-joins
+            connection.addSessionListener(registry);
+            connection.addSessionListener(cluster);
+
+            registry.addListener(this);
+            registry.getAllServiceAddresses(); // fetch (and watch) the addresses
+            cluster.addNewNodeAsync().join();
+        }
+
+        void stop() throws InterruptedException {
+            registry.close();
+            connection.close();
+            registryDispatcher.shutdown();
+            clusterDispatcher.shutdown();
+        }
+
+        // whether the node has got its role on its current session (i.e. it has recovered from a partition)
+        boolean isSettled() {
+            long sessionId = zooKeeper.getSessionId();
+            return sessionId != expiredSessionId && sessionId == roleSessionId;
+        }
+
+        @Override
+        public void onLeader() {
+            roleSessionId = zooKeeper.getSessionId();
+            leading = true;
+            registry.unRegisterNodeAsync().thenRun(() -> {
+                if (snapshotReads && leading) {
+                    registry.startPublishingSnapshot();
+                }
+            });
+        }
+
+        @Override
+        public void onFollower() {
+            roleSessionId = zooKeeper.getSessionId();
+            leading = false;
+            registry.stopPublishingSnapshot();
+            registry.registerNodeAsync(new Endpoint("http", "node-" + id, 8080));
+        }
+
+        @Override
+        public void onSessionRecovered(ZooKeeper zooKeeper) {
+            this.zooKeeper = zooKeeper;
+        }
+
+        @Override
+        public void onAddressBookChanged(AddressBook book) {
+            this.book = book;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+import zk.classes.EventDispatcher;
+import zk.classes.FaultTolerantCluster;
+import zk.classes.OnElectionCallBack;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Time for a node to join a cluster of a growing size and to complete its election
+// (i.e. from FaultTolerantCluster.addNewNode() to its OnElectionCallBack being called)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ElectionBenchmark {
+    private static final String CLUSTER_ROOT = "/benchmark_cluster";
+
+    @Param({"10", "100", "1000"})
+    public int clusterSize;
+
+    private EmbeddedZooKeeper server;
+    private ZooKeeper membersClient;
+    private ZooKeeper joiningClient;
+    private EventDispatcher dispatcher;
+    private volatile CountDownLatch elected;
+    private FaultTolerantCluster cluster;
+    private String joinedNode;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new EmbeddedZooKeeper();
+        membersClient = server.connect();
+        EmbeddedZooKeeper.createPath(membersClient, CLUSTER_ROOT);
+        EmbeddedZooKeeper.createChildren(membersClient, CLUSTER_ROOT, "c_", new byte[]{}, clusterSize - 1);
+        dispatcher = new EventDispatcher("benchmark-election");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dispatcher.shutdown();
+        membersClient.close();
+        server.close();
+    }
+
+    // a new session for each iteration (to drop the watches left by the previous joins)
+    @Setup(Level.Iteration)
+    public void connect() throws Exception {
+        joiningClient = server.connect();
+        OnElectionCallBack callback = new OnElectionCallBack() {
+            @Override
+            public void onLeader() {
+                elected.countDown();
+            }
+
+            @Override
+            public void onFollower() {
+                elected.countDown();
+            }
+        };
+        cluster = new FaultTolerantCluster(CLUSTER_ROOT, joiningClient, callback, dispatcher);
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() throws Exception {
+        joiningClient.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void leave() throws Exception {
+        joiningClient.delete(CLUSTER_ROOT + "/" + joinedNode, -1);
+    }
+
+    @Benchmark
+    public String joinAndElect() throws Exception {
+        elected = new CountDownLatch(1);
+        joinedNode = cluster.addNewNode();
+        elected.await();
+        return joinedNode;
+    }
+}
@@ -0,0 +1,141 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// A standalone Zookeeper server running in-process (on a random local port, with its data in a temp directory),
+// so that the benchmarks don't depend on an external server
+public class EmbeddedZooKeeper implements AutoCloseable {
+    private static final int TICK_TIME = 2000;
+    private static final int SESSION_TIMEOUT = 10000;
+
+    private final File dataDir;
+    private final CountingServer server;
+    private final ServerCnxnFactory connectionFactory;
+
+    public EmbeddedZooKeeper() throws IOException, InterruptedException {
+        this(TICK_TIME);
+    }
+
+    // 'tickTime' - the server's tick in milli secs (the session timeouts are bound to 2 - 20 ticks)
+    public EmbeddedZooKeeper(int tickTime) throws IOException, InterruptedException {
+        this.dataDir = Files.createTempDirectory("zk-benchmark").toFile();
+        this.server = new CountingServer(dataDir, tickTime);
+        // no limit on the connections per client (each benchmark client has its own session)
+        this.connectionFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.connectionFactory.startup(server);
+    }
+
+    public String getConnectString() {
+        return "127.0.0.1:" + connectionFactory.getLocalPort();
+    }
+
+    // returns the number of requests received by the server so far (not counting the pings)
+    public long getRequestCount() {
+        return server.requests.sum();
+    }
+
+    // returns the number of watches currently set on the server (by all the sessions)
+    public int getWatchCount() {
+        return server.getZKDatabase().getDataTree().getWatchCount();
+    }
+
+    // expire the given session on the server (as if its client had been partitioned away for the session timeout)
+    public void expireSession(long sessionId) {
+        server.expire(sessionId);
+    }
+
+    // returns a new client (i.e. a new session) connected to the server
+    public ZooKeeper connect() throws IOException, InterruptedException {
+        return connect(event -> {}, SESSION_TIMEOUT);
+    }
+
+    // returns a new client connected to the server, with the given default watcher and session timeout
+    public ZooKeeper connect(Watcher watcher, int sessionTimeout) throws IOException, InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zooKeeper = new ZooKeeper(getConnectString(), sessionTimeout, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+            watcher.process(event);
+        });
+        if (!connected.await(sessionTimeout, TimeUnit.MILLISECONDS)) {
+            zooKeeper.close();
+            throw new IOException("Could not connect to the embedded Zookeeper server");
+        }
+        return zooKeeper;
+    }
+
+    // create the given number of (ephemeral sequential) znodes with the given data under the given path,
+    // issuing all the creates at once rather than waiting for each of them
+    public static void createChildren(ZooKeeper zooKeeper, String path, String prefix, byte[] data, int count)
+            throws InterruptedException, KeeperException {
+        CountDownLatch created = new CountDownLatch(count);
+        AtomicInteger failure = new AtomicInteger(KeeperException.Code.OK.intValue());
+        for (int i = 0; i < count; i++) {
+            zooKeeper.create(path + "/" + prefix, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL,
+                             (rc, p, ctx, name) -> {
+                                 if (rc != KeeperException.Code.OK.intValue()) {
+                                     failure.set(rc);
+                                 }
+                                 created.countDown();
+                             }, null);
+        }
+        created.await();
+        if (failure.get() != KeeperException.Code.OK.intValue()) {
+            throw KeeperException.create(KeeperException.Code.get(failure.get()), path);
+        }
+    }
+
+    // create the given (persistent) znode, if it doesn't exist already
+    public static void createPath(ZooKeeper zooKeeper, String path) throws InterruptedException, KeeperException {
+        try {
+            zooKeeper.create(path, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // already created
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        connectionFactory.shutdown();
+        try (Stream<File> files = Files.walk(dataDir.toPath()).map(Path::toFile)) {
+            files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+        }
+    }
+
+    // counts the requests submitted by the clients (to measure the cost of e.g. a failover in Zookeeper operations)
+    private static class CountingServer extends ZooKeeperServer {
+        private final LongAdder requests = new LongAdder();
+
+        CountingServer(File dataDir, int tickTime) throws IOException {
+            super(dataDir, dataDir, tickTime);
+        }
+
+        @Override
+        public void submitRequest(Request request) {
+            if (request.type != ZooDefs.OpCode.ping) {
+                requests.increment();
+            }
+            super.submitRequest(request);
+        }
+    }
+}
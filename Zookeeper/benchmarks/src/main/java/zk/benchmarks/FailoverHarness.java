@@ -0,0 +1,381 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import zk.classes.AddressBook;
+import zk.classes.Endpoint;
+import zk.classes.FaultTolerantCluster;
+import zk.classes.InMemoryMetricsSink;
+import zk.classes.Metrics;
+import zk.classes.OnElectionCallBack;
+import zk.classes.ServiceRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A failover and churn harness for FaultTolerantCluster (e.g. to tune the session timeout).
+ * <p>
+ * It starts an in-process Zookeeper server and N cluster members (each with its own session, registering itself
+ * with the service registry while it's a follower, as ServiceRegistryMain does), then kills the leader or a random
+ * follower at the given rate (replacing each killed member by a new one), and reports the p50, p99 and max of:
+ * <ul>
+ *   <li>failover latency - from killing the leader to OnElectionCallBack.onLeader() on its successor</li>
+ *   <li>registry convergence - from killing a member to an observing registry's addresses reflecting it</li>
+ *   <li>Zookeeper ops per failover - requests received by the server (not counting the pings) until converged</li>
+ * </ul>
+ * It also detects split-brain, i.e. two members believing they lead at the same time. With --kill-mode=expire the
+ * leader's session is expired by the server (as if the leader had been partitioned away), and the leader only
+ * learns about it once it reconnects, which is the window a split-brain shows up in.
+ * <p>
+ * Usage: FailoverHarness [--members=10] [--kills=20] [--interval-ms=500] [--leader-ratio=0.5]
+ *                        [--kill-mode=close|expire] [--session-timeout-ms=4000] [--metrics=true]
+ * <br>
+ * With --metrics=true, the metrics of all the members (see Metrics) are printed along with the results.
+ * <br>
+ * Exits with status 2 if a split-brain was detected.
+ */
+public class FailoverHarness {
+    private static final String CLUSTER_ROOT = "/harness_cluster";
+    private static final long SETTLE_TIMEOUT_MILLIS = 30000;
+    private static final int TICK_TIME = 200; // allows session timeouts from 400 ms
+
+    private final int memberCount;
+    private final int kills;
+    private final long intervalMillis;
+    private final double leaderRatio;
+    private final boolean expireSessions;
+    private final int sessionTimeout;
+
+    private EmbeddedZooKeeper server;
+    private ZooKeeper observerClient;
+    private ServiceRegistry observer;
+    private int nextMemberId = 0;
+
+    // cluster state, guarded by 'this'
+    private final List<Member> alive = new ArrayList<>();
+    private final Set<Member> believedLeaders = new HashSet<>();
+    private Member leader;
+    private AddressBook observedBook;
+
+    // the kill under measurement, guarded by 'this'
+    private Member victim;
+    private boolean victimWasLeader;
+    private long killNanos;
+    private long failoverNanos;
+    private long convergedNanos;
+
+    // results, guarded by 'this'
+    private final List<Long> failoverLatencies = new ArrayList<>();
+    private final List<Long> convergenceTimes = new ArrayList<>();
+    private final List<Long> leaderFailoverOps = new ArrayList<>();
+    private final List<Long> followerKillOps = new ArrayList<>();
+    private final List<Long> splitBrainDurations = new ArrayList<>();
+    private int timeouts = 0;
+    private int splitBrains = 0;
+
+    FailoverHarness(int memberCount, int kills, long intervalMillis, double leaderRatio, boolean expireSessions,
+                    int sessionTimeout) {
+        this.memberCount = memberCount;
+        this.kills = kills;
+        this.intervalMillis = intervalMillis;
+        this.leaderRatio = leaderRatio;
+        this.expireSessions = expireSessions;
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int memberCount = 10;
+        int kills = 20;
+        long intervalMillis = 500;
+        double leaderRatio = 0.5;
+        boolean expireSessions = false;
+        int sessionTimeout = 4000;
+        boolean printMetrics = false;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            switch (option[0]) {
+                case "--members" -> memberCount = Integer.parseInt(option[1]);
+                case "--kills" -> kills = Integer.parseInt(option[1]);
+                case "--interval-ms" -> intervalMillis = Long.parseLong(option[1]);
+                case "--leader-ratio" -> leaderRatio = Double.parseDouble(option[1]);
+                case "--kill-mode" -> expireSessions = option[1].equals("expire");
+                case "--session-timeout-ms" -> sessionTimeout = Integer.parseInt(option[1]);
+                case "--metrics" -> printMetrics = Boolean.parseBoolean(option[1]);
+                default -> throw new IllegalArgumentException("Unknown option: " + option[0]);
+            }
+        }
+        if (memberCount < 2) {
+            throw new IllegalArgumentException("At least 2 members are required");
+        }
+
+        InMemoryMetricsSink metrics = new InMemoryMetricsSink();
+        if (printMetrics) {
+            Metrics.setSink(metrics);
+        }
+        FailoverHarness harness = new FailoverHarness(memberCount, kills, intervalMillis, leaderRatio, expireSessions,
+                                                      sessionTimeout);
+        harness.run();
+        harness.report();
+        if (printMetrics) {
+            System.out.println();
+            System.out.print(metrics.report());
+        }
+        System.exit(harness.splitBrains > 0 ? 2 : 0);
+    }
+
+    void run() throws Exception {
+        server = new EmbeddedZooKeeper(TICK_TIME);
+        observerClient = server.connect();
+        EmbeddedZooKeeper.createPath(observerClient, CLUSTER_ROOT);
+        observer = new ServiceRegistry(observerClient, FailoverHarness.class.getClassLoader());
+        observer.getAllServiceAddresses(); // fetch (and watch) the addresses
+        observer.addListener(this::onAddressBookChanged);
+
+        for (int i = 0; i < memberCount; i++) {
+            startMember();
+        }
+        // wait for all the followers to be registered
+        if (!await(() -> leader != null && registeredCount() == memberCount - 1)) {
+            throw new IllegalStateException("The cluster did not form within " + SETTLE_TIMEOUT_MILLIS + " ms");
+        }
+
+        for (int i = 0; i < kills; i++) {
+            Thread.sleep(intervalMillis);
+            killAndMeasure();
+            // replace the killed member (it joins as a follower, wait for it to be registered)
+            startMember();
+            await(() -> registeredCount() == memberCount - 1);
+        }
+    }
+
+    private void killAndMeasure() throws Exception {
+        Member target;
+        synchronized (this) {
+            boolean killLeader = leader != null && ThreadLocalRandom.current().nextDouble() < leaderRatio;
+            if (killLeader) {
+                target = leader;
+            } else {
+                List<Member> followers = new ArrayList<>(alive);
+                followers.remove(leader);
+                target = followers.get(ThreadLocalRandom.current().nextInt(followers.size()));
+            }
+            alive.remove(target);
+            victim = target;
+            victimWasLeader = killLeader;
+            failoverNanos = -1;
+            convergedNanos = -1;
+        }
+
+        long opsBefore = server.getRequestCount();
+        synchronized (this) {
+            killNanos = System.nanoTime();
+        }
+        if (expireSessions) {
+            server.expireSession(target.zooKeeper.getSessionId()); // the member still believes it's alive
+        } else {
+            synchronized (this) {
+                leaderLost(target);
+            }
+            target.zooKeeper.close();
+        }
+
+        boolean settled = await(() -> convergedNanos >= 0);
+        long ops = server.getRequestCount() - opsBefore;
+        synchronized (this) {
+            if (!settled) {
+                timeouts++;
+                return;
+            }
+            convergenceTimes.add(convergedNanos - killNanos);
+            if (victimWasLeader) {
+                failoverLatencies.add(failoverNanos - killNanos);
+                leaderFailoverOps.add(ops);
+            } else {
+                followerKillOps.add(ops);
+            }
+        }
+    }
+
+    private void startMember() throws Exception {
+        Member member = new Member(nextMemberId++);
+        synchronized (this) {
+            alive.add(member);
+        }
+        member.join();
+    }
+
+    private synchronized void onLeader(Member member) {
+        long now = System.nanoTime();
+        for (Member stale : believedLeaders) {
+            if (stale != member && stale.supersededNanos == 0) {
+                // the previous leader hasn't learnt it has lost its leadership yet
+                stale.supersededNanos = now;
+                splitBrains++;
+                System.err.println("SPLIT-BRAIN: " + member + " leads while " + stale + " still believes it leads");
+            }
+        }
+        believedLeaders.add(member);
+        leader = member;
+        if (victimWasLeader && failoverNanos < 0 && member != victim) {
+            failoverNanos = now;
+        }
+        checkConverged();
+    }
+
+    // the member no longer believes it leads (e.g. killed, or it learnt its session has expired)
+    private void leaderLost(Member member) {
+        if (believedLeaders.remove(member) && member.supersededNanos != 0) {
+            splitBrainDurations.add(System.nanoTime() - member.supersededNanos);
+        }
+        if (leader == member) {
+            leader = null;
+        }
+    }
+
+    private synchronized void onAddressBookChanged(AddressBook book) {
+        observedBook = book;
+        checkConverged();
+    }
+
+    // the kill has converged once the victim's address is gone from the observed registry and, if the leader was
+    // killed, a new leader is elected and has unregistered itself
+    private void checkConverged() {
+        if (victim == null || convergedNanos >= 0 || observedBook == null) {
+            return;
+        }
+        List<String> addresses = observedBook.getAddresses();
+        if (addresses.contains(victim.address)) {
+            return;
+        }
+        if (victimWasLeader && (failoverNanos < 0 || leader == null || addresses.contains(leader.address))) {
+            return;
+        }
+        convergedNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    private synchronized int registeredCount() {
+        return observedBook != null ? observedBook.size() : 0;
+    }
+
+    // wait (up to the settle timeout) for the given condition, re-checked on every change of the cluster state
+    private synchronized boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(50)));
+        }
+        return true;
+    }
+
+    synchronized void report() {
+        System.out.println();
+        System.out.printf(Locale.ENGLISH, "Failover harness: %d members, %d kills (every %d ms, %.0f%% leaders), "
+                          + "kill mode: %s, session timeout: %d ms%n", memberCount, kills, intervalMillis,
+                          leaderRatio * 100, expireSessions ? "expire" : "close", sessionTimeout);
+        System.out.printf(Locale.ENGLISH, "%-30s %6s %10s %10s %10s%n", "", "count", "p50", "p99", "max");
+        printMillis("failover latency (ms)", failoverLatencies);
+        printMillis("registry convergence (ms)", convergenceTimes);
+        printCount("zk ops per leader failover", leaderFailoverOps);
+        printCount("zk ops per follower kill", followerKillOps);
+        if (timeouts > 0) {
+            System.out.println("kills not converged within " + SETTLE_TIMEOUT_MILLIS + " ms: " + timeouts);
+        }
+        if (splitBrains == 0) {
+            System.out.println("split-brain: none detected");
+        } else {
+            System.out.println("split-brain: detected " + splitBrains + " times ("
+                               + (splitBrains - splitBrainDurations.size()) + " still ongoing at the end)");
+            printMillis("split-brain duration (ms)", splitBrainDurations);
+        }
+    }
+
+    private static void printMillis(String name, List<Long> nanos) {
+        long[] sorted = sorted(nanos);
+        System.out.printf(Locale.ENGLISH, "%-30s %6d %10.2f %10.2f %10.2f%n", name, sorted.length,
+                          percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 1) / 1e6);
+    }
+
+    private static void printCount(String name, List<Long> counts) {
+        long[] sorted = sorted(counts);
+        System.out.printf(Locale.ENGLISH, "%-30s %6d %10d %10d %10d%n", name, sorted.length,
+                          percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 1));
+    }
+
+    private static long[] sorted(List<Long> values) {
+        long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // nearest-rank percentile (0 if there are no values)
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    // a cluster member with its own session, registered with the service registry while it's a follower
+    private class Member implements OnElectionCallBack, Watcher {
+        private final int id;
+        private final String address;
+        private ZooKeeper zooKeeper;
+        private ServiceRegistry registry;
+        private long supersededNanos = 0; // when another member became the leader while this one still led
+
+        Member(int id) {
+            this.id = id;
+            this.address = "http://member-" + id + ":8080";
+        }
+
+        void join() throws Exception {
+            zooKeeper = server.connect(this, sessionTimeout);
+            registry = new ServiceRegistry(zooKeeper, FailoverHarness.class.getClassLoader());
+            FaultTolerantCluster cluster = new FaultTolerantCluster(CLUSTER_ROOT, zooKeeper, this);
+            cluster.addNewNode();
+        }
+
+        @Override
+        public void onLeader() {
+            registry.unRegisterNode();
+            FailoverHarness.this.onLeader(this);
+        }
+
+        @Override
+        public void onFollower() {
+            registry.registerNode(new Endpoint("http", "member-" + id, 8080));
+        }
+
+        // session events of the member
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getState() == Event.KeeperState.Expired) {
+                synchronized (FailoverHarness.this) {
+                    leaderLost(this);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "member-" + id;
+        }
+    }
+}
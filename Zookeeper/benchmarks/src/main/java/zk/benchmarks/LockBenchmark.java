@@ -0,0 +1,118 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+import zk.classes.DistributedLock;
+import zk.classes.DistributedReadWriteLock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Throughput of acquiring and releasing a contended lock, by 8 clients (each with its own session and thread):
+// - fair: DistributedLock, each waiter watching its predecessor (a release wakes up a single waiter)
+// - naive: a single znode created by the holder, every waiter watching it (a release wakes up all the waiters,
+//   which all race to create it again)
+// - read: the read lock of a DistributedReadWriteLock (the readers hold the lock at once)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class LockBenchmark {
+    private static final String LOCK_PATH = "/benchmark_locks/lock";
+
+    @Param({"fair", "naive", "read"})
+    public String lockType;
+
+    private EmbeddedZooKeeper server;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new EmbeddedZooKeeper();
+        try (ZooKeeper zooKeeper = server.connect()) {
+            EmbeddedZooKeeper.createPath(zooKeeper, "/benchmark_locks");
+            if (!lockType.equals("naive")) {
+                EmbeddedZooKeeper.createPath(zooKeeper, LOCK_PATH);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    // a client of the lock (i.e. a session) per benchmark thread
+    @State(Scope.Thread)
+    public static class Client {
+        private ZooKeeper zooKeeper;
+        private DistributedLock lock;
+        private NaiveLock naiveLock;
+
+        @Setup(Level.Trial)
+        public void connect(LockBenchmark benchmark) throws Exception {
+            zooKeeper = benchmark.server.connect();
+            switch (benchmark.lockType) {
+                case "fair":
+                    lock = new DistributedLock(zooKeeper, LOCK_PATH);
+                    break;
+                case "read":
+                    lock = new DistributedReadWriteLock(zooKeeper, LOCK_PATH).readLock();
+                    break;
+                default:
+                    naiveLock = new NaiveLock(zooKeeper, LOCK_PATH);
+                    break;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws Exception {
+            zooKeeper.close();
+        }
+    }
+
+    @Benchmark
+    public void lockAndUnlock(Client client) throws Exception {
+        if (client.lock != null) {
+            client.lock.lock();
+            client.lock.unlock();
+        } else {
+            client.naiveLock.lock();
+            client.naiveLock.unlock();
+        }
+    }
+
+    // the lock as a single ephemeral znode: the waiters watch it and try to create it again once it's deleted
+    static class NaiveLock {
+        private final ZooKeeper zooKeeper;
+        private final String path;
+
+        NaiveLock(ZooKeeper zooKeeper, String path) {
+            this.zooKeeper = zooKeeper;
+            this.path = path;
+        }
+
+        void lock() throws KeeperException, InterruptedException {
+            while (true) {
+                try {
+                    zooKeeper.create(path, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                    return;
+                } catch (KeeperException.NodeExistsException e) {
+                    CountDownLatch released = new CountDownLatch(1);
+                    if (zooKeeper.exists(path, event -> released.countDown()) != null) {
+                        released.await();
+                    }
+                }
+            }
+        }
+
+        void unlock() throws KeeperException, InterruptedException {
+            zooKeeper.delete(path, -1);
+        }
+    }
+}
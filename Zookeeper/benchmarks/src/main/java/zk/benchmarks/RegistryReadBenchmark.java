@@ -0,0 +1,99 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+import zk.classes.ConsistentHashRing;
+import zk.classes.Endpoint;
+import zk.classes.EndpointCodec;
+import zk.classes.EventDispatcher;
+import zk.classes.RoundRobinSelector;
+import zk.classes.ServiceRegistry;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Throughput of the registry's read path (i.e. of looking up the workers on every request),
+// with concurrent readers (4 by default, change it with -t)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RegistryReadBenchmark {
+    static final String REGISTRY_ROOT = "/service_registry";
+
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    private EmbeddedZooKeeper server;
+    private ZooKeeper zooKeeper;
+    private EventDispatcher dispatcher;
+    private ServiceRegistry registry;
+    private RoundRobinSelector roundRobin;
+    private ConsistentHashRing ring;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new EmbeddedZooKeeper();
+        zooKeeper = server.connect();
+        EmbeddedZooKeeper.createPath(zooKeeper, REGISTRY_ROOT);
+        EmbeddedZooKeeper.createChildren(zooKeeper, REGISTRY_ROOT, "n_",
+                                         EndpointCodec.encode(new Endpoint("http", "worker", 8080)), members);
+
+        dispatcher = new EventDispatcher("benchmark-registry");
+        registry = new ServiceRegistry(zooKeeper, RegistryReadBenchmark.class.getClassLoader(), false, dispatcher);
+        registry.updateAddresses();
+        roundRobin = new RoundRobinSelector(registry);
+        ring = new ConsistentHashRing();
+        registry.addListener(ring);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.close();
+        dispatcher.shutdown();
+        zooKeeper.close();
+        server.close();
+    }
+
+    // each reader looks up its own keys
+    @State(Scope.Thread)
+    public static class Keys {
+        private final String[] keys = new String[1024];
+        private int next = 0;
+
+        @Setup
+        public void setup() {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "key-" + ThreadLocalRandom.current().nextInt();
+            }
+        }
+
+        String next() {
+            return keys[next++ & (keys.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public List<String> getAllServiceAddresses() {
+        return registry.getAllServiceAddresses();
+    }
+
+    @Benchmark
+    public List<Endpoint> getAllEndpoints() {
+        return registry.getAllEndpoints();
+    }
+
+    @Benchmark
+    public String roundRobinSelect() {
+        return roundRobin.select();
+    }
+
+    @Benchmark
+    public String consistentHashLookup(Keys keys) {
+        return ring.get(keys.next());
+    }
+}
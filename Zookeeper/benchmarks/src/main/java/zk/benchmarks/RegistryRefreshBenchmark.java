@@ -0,0 +1,94 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+import zk.classes.AddressBook;
+import zk.classes.Endpoint;
+import zk.classes.EndpointCodec;
+import zk.classes.EventDispatcher;
+import zk.classes.ServiceRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+// Latency of refreshing the registry's addresses (i.e. of ServiceRegistry.updateAddresses()), for a growing
+// number of registered members:
+// - fullRefresh: the first fetch of a registry, which reads the data of all the members
+// - incrementalRefresh: a refresh after a member has joined (and another one has left)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryRefreshBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    private EmbeddedZooKeeper server;
+    private ZooKeeper registryClient;
+    private ZooKeeper membersClient;
+    private EventDispatcher dispatcher;
+    private byte[] memberData;
+
+    private ServiceRegistry registry;      // registry refreshed incrementally
+    private ServiceRegistry freshRegistry; // registry which hasn't fetched the addresses yet
+    private String lastJoined;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new EmbeddedZooKeeper();
+        registryClient = server.connect();
+        membersClient = server.connect();
+        memberData = EndpointCodec.encode(new Endpoint("http", "worker", 8080));
+        EmbeddedZooKeeper.createPath(membersClient, RegistryReadBenchmark.REGISTRY_ROOT);
+        EmbeddedZooKeeper.createChildren(membersClient, RegistryReadBenchmark.REGISTRY_ROOT, "n_", memberData, members);
+
+        // the refreshes triggered by the watches are pushed back (far) beyond the measurement,
+        // so that only the refreshes of the benchmark are measured
+        dispatcher = new EventDispatcher("benchmark-registry", 1, TimeUnit.MINUTES.toMillis(10),
+                                         TimeUnit.MINUTES.toMillis(10));
+        registry = new ServiceRegistry(registryClient, RegistryRefreshBenchmark.class.getClassLoader(), false,
+                                       dispatcher);
+        registry.updateAddresses();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.close();
+        dispatcher.shutdown();
+        membersClient.close();
+        registryClient.close();
+        server.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void churn() throws Exception {
+        if (lastJoined != null) {
+            membersClient.delete(lastJoined, -1);
+        }
+        lastJoined = membersClient.create(RegistryReadBenchmark.REGISTRY_ROOT + "/n_", memberData,
+                                          ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        freshRegistry = new ServiceRegistry(registryClient, RegistryRefreshBenchmark.class.getClassLoader(), false,
+                                            dispatcher);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeFreshRegistry() {
+        freshRegistry.close();
+    }
+
+    @Benchmark
+    public AddressBook fullRefresh() throws Exception {
+        freshRegistry.updateAddresses();
+        return freshRegistry.getAddressBook();
+    }
+
+    @Benchmark
+    public AddressBook incrementalRefresh() throws Exception {
+        registry.updateAddresses();
+        return registry.getAddressBook();
+    }
+}
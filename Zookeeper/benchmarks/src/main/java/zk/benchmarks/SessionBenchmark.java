@@ -0,0 +1,42 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+import zk.classes.ZKConnection;
+
+import java.util.concurrent.TimeUnit;
+
+// Time to establish a new Zookeeper session through ZKConnection (e.g. on startup, or once a session expired)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+    private static final int SESSION_TIMEOUT = 10000;
+
+    private EmbeddedZooKeeper server;
+    private ZKConnection connection;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new EmbeddedZooKeeper();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeConnection() throws Exception {
+        connection.close();
+    }
+
+    @Benchmark
+    public ZooKeeper connect() throws Exception {
+        connection = new ZKConnection(server.getConnectString(), SESSION_TIMEOUT);
+        return connection.connect(SESSION_TIMEOUT);
+    }
+}
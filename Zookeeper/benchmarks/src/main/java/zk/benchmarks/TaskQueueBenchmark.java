@@ -0,0 +1,112 @@
+package zk.benchmarks;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.*;
+import zk.classes.Endpoint;
+import zk.classes.EventDispatcher;
+import zk.classes.ServiceRegistry;
+import zk.classes.TaskQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Throughput of the task queue (tasks per second, from their submission to their acknowledgement by the workers)
+// for a growing number of workers, each with its own session and TaskQueue (i.e. its own worker threads):
+// - taskMicros = 0: the cost of the distribution alone (the leader's reads and transactions, the workers' claims
+//   and acknowledgements)
+// - taskMicros > 0: tasks taking some time to process, i.e. the throughput scales with the workers
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskQueueBenchmark {
+    private static final int BATCHES = 100;      // per invocation
+    private static final int BATCH_TASKS = 100;  // per submitted batch
+    private static final int TASK_BYTES = 64;
+
+    @Param({"1", "4", "16"})
+    public int workers;
+
+    @Param({"0", "1000"})
+    public int taskMicros;
+
+    private EmbeddedZooKeeper server;
+    private ZooKeeper leaderClient;
+    private EventDispatcher registryDispatcher;
+    private ServiceRegistry leaderRegistry;
+    private TaskQueue leaderQueue;
+    private final List<ZooKeeper> workerClients = new ArrayList<>();
+    private final List<TaskQueue> workerQueues = new ArrayList<>();
+    private final AtomicReference<CountDownLatch> completed = new AtomicReference<>();
+    private List<byte[]> batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new EmbeddedZooKeeper();
+        leaderClient = server.connect();
+        registryDispatcher = new EventDispatcher("benchmark-registry");
+        leaderRegistry = new ServiceRegistry(leaderClient, TaskQueueBenchmark.class.getClassLoader(), false,
+                                             registryDispatcher);
+        leaderRegistry.updateAddresses();
+        leaderQueue = new TaskQueue(leaderClient);
+
+        for (int i = 0; i < workers; i++) {
+            ZooKeeper client = server.connect();
+            ServiceRegistry registry = new ServiceRegistry(client, TaskQueueBenchmark.class.getClassLoader(), false,
+                                                           registryDispatcher);
+            registry.registerNode(new Endpoint("http", "worker-" + i, 8080));
+            TaskQueue queue = new TaskQueue(client);
+            queue.startWorking(registry, task -> {
+                if (taskMicros > 0) {
+                    TimeUnit.MICROSECONDS.sleep(taskMicros);
+                }
+                completed.get().countDown();
+            });
+            workerClients.add(client);
+            workerQueues.add(queue);
+        }
+        while (leaderRegistry.getAddressBook().size() < workers) {
+            Thread.sleep(10); // until the leader's registry has seen all the workers
+        }
+        leaderQueue.startDistributing(leaderRegistry);
+
+        batch = new ArrayList<>(BATCH_TASKS);
+        for (int i = 0; i < BATCH_TASKS; i++) {
+            batch.add(new byte[TASK_BYTES]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        leaderQueue.close();
+        leaderRegistry.close();
+        for (TaskQueue queue : workerQueues) {
+            queue.close();
+        }
+        for (ZooKeeper client : workerClients) {
+            client.close();
+        }
+        registryDispatcher.shutdown();
+        leaderClient.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCHES * BATCH_TASKS)
+    public void submitAndProcess() throws Exception {
+        CountDownLatch done = new CountDownLatch(BATCHES * BATCH_TASKS);
+        completed.set(done);
+        List<CompletableFuture<String>> submitted = new ArrayList<>(BATCHES);
+        for (int i = 0; i < BATCHES; i++) {
+            submitted.add(leaderQueue.submitAsync(batch));
+        }
+        CompletableFuture.allOf(submitted.toArray(new CompletableFuture[0])).get();
+        done.await();
+    }
+}
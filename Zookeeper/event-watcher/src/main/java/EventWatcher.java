@@ -1,20 +1,40 @@
 import org.apache.zookeeper.*;
-import org.apache.zookeeper.data.Stat;
+import zk.classes.WatchManager;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 public class EventWatcher implements Watcher { // implement a Zookeeper Watcher(event-handler) class
     private static final String ZOOKEEPER_ADDRESS = "localhost:2181";
     private static final int SESSION_TIMEOUT = 3000; // in milliseconds
 
-    private static final String TARGET_ZNODE = "/target_root";  // path of the znode to watch
+    private static final String DEFAULT_TARGET_ZNODE = "/target_root";  // path of the znode to watch by default
+    private static final int LISTENER_THREADS = 2; // threads printing the notifications
     private ZooKeeper zookeeper; // zookeeper client object
+    private WatchManager watchManager; // watches all the target znodes
+
+    // pass the paths of the znodes to watch as arguments (/target_root if none)
+    // pass "--persistent" as an argument to use persistent watches instead of one-time watches, along with a
+    // persistent recursive watch reporting the creation, deletion and data changes of the znodes' descendants
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean persistent = false;
+        List<String> targets = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--persistent")) {
+                persistent = true;
+            } else {
+                targets.add(arg);
+            }
+        }
+        if (targets.isEmpty()) {
+            targets.add(DEFAULT_TARGET_ZNODE);
+        }
 
-    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
         EventWatcher failOver = new EventWatcher();
         failOver.connectToZookeeper();
-        failOver.watchZnode();
+        failOver.watchZnodes(targets, persistent);
         failOver.waitForEventThread();
+        failOver.watchManager.close();
         System.out.println();
         System.out.println("Disconnected from zookeeper, exiting application!");
     }
@@ -44,60 +64,69 @@ public class EventWatcher implements Watcher { // implement a Zookeeper Watcher(
     // getChildren() -> notifies about any change in a znode's children
     // Note: All these events are ONE TIME only events.
     //       Means, we will need to subscribe to the events again after they are triggered to get another notification.
-    private void watchZnode() throws KeeperException, InterruptedException
+    //       The WatchManager does so for any number of znodes, only subscribing again to the event which has
+    //       been triggered (e.g. a data change costs a single getData()).
+    // Since ZooKeeper 3.6, a PERSISTENT watch can be added on a znode instead, which stays registered after
+    // it is triggered (hence, no need to subscribe again after each event).
+    // A PERSISTENT_RECURSIVE watch also notifies about creation, deletion and data changes of all the
+    // znode's descendants (each event carries the path of the changed znode).
+    private void watchZnodes(List<String> targets, boolean persistent)
     {
-        Stat stats = this.zookeeper.exists(TARGET_ZNODE, this);
-        if (stats == null) { // return if the target znode doesn't exist
-            return;
+        watchManager = new WatchManager(zookeeper, LISTENER_THREADS, persistent);
+        for (String target : targets) {
+            watchManager.watchData(target, (path, data, stat) -> {
+                if (data == null) {
+                    System.out.println(path + " doesn't exist!");
+                } else {
+                    System.out.println(path + " data: " + new String(data));
+                }
+            });
+            watchManager.watchChildren(target, (path, children) -> {
+                if (children != null) {
+                    System.out.println(path + " children: " + children);
+                }
+            });
+            if (persistent) {
+                watchManager.watchTree(target, (path, type) -> {
+                    if (!path.equals(target)) { // the target's own changes are printed above
+                        System.out.println(path + " " + describe(type));
+                    }
+                });
+            }
         }
+    }
 
-        byte[] data = zookeeper.getData(TARGET_ZNODE, this, stats);
-        List<String> children = zookeeper.getChildren(TARGET_ZNODE, this);
-
-        System.out.println("Data: " + new String(data));
-        System.out.println("Children: " + children);
-        System.out.println();
-     }
+    private static String describe(Event.EventType type) {
+        switch (type) {
+            case NodeCreated:
+                return "created!";
+            case NodeDeleted:
+                return "deleted!";
+            default:
+                return "data changed!";
+        }
+    }
 
-    // implement event handler method 'process' of Watcher Interface (to handle zookeeper events)
+    // implement event handler method 'process' of Watcher Interface (to handle zookeeper connection events)
     // Note: This is a callback which will be executed on a separate (Zookeeper Event)
     //       thread when a Zookeeper event occurs
     @Override
     public void process(WatchedEvent event) {
-        switch(event.getType()) {
-            case None:
-                if (event.getState() == Event.KeeperState.SyncConnected) {// event of successful connection to zookeeper server
-                    System.out.println("-------------------------------------");
-                    System.out.println("Successfully connected to Zookeeper!");
-                    System.out.println("-------------------------------------");
-                }
-                else {
-                    synchronized (zookeeper) {
-                        System.out.println("-------------------------------------");
-                        System.out.println("Disconnection from Zookeeper event!");
-                        System.out.println("-------------------------------------");
-                        zookeeper.notifyAll(); // notify all the waiting threads to wake up (i.e. main thread in this case)
-                    }
-                }
-                break;
-            case NodeCreated:
-                System.out.println(TARGET_ZNODE + " created!");
-                break;
-            case NodeDeleted:
-                System.out.println(TARGET_ZNODE + " deleted!");
-                break;
-            case NodeDataChanged:
-                System.out.println(TARGET_ZNODE + " data changed!");
-                break;
-            case NodeChildrenChanged:
-                System.out.println(TARGET_ZNODE + " children changed!");
-                break;
+        if (event.getType() != Event.EventType.None) {
+            return; // the znode events are handled by the WatchManager
         }
-        try {
-            watchZnode();  // subscribe the watchers after each ZK event
-        } catch (KeeperException ex) {
-        } catch (InterruptedException ex) {
+        if (event.getState() == Event.KeeperState.SyncConnected) {// event of successful connection to zookeeper server
+            System.out.println("-------------------------------------");
+            System.out.println("Successfully connected to Zookeeper!");
+            System.out.println("-------------------------------------");
+        }
+        else {
+            synchronized (zookeeper) {
+                System.out.println("-------------------------------------");
+                System.out.println("Disconnection from Zookeeper event!");
+                System.out.println("-------------------------------------");
+                zookeeper.notifyAll(); // notify all the waiting threads to wake up (i.e. main thread in this case)
+            }
         }
     }
 }
-
@@ -10,6 +10,7 @@ import java.util.List;
 public class ClusterWithFailOver implements Watcher { // define a Zookeeper Watcher(event-handler) class
     private static final String ZNODE_ROOT = "/election";
     private String rootZNodePath;
+    private ZKConnection connection;
     private ZooKeeper zookeeper; // zookeeper client object
     private String currentZnodeName;  // current znode's name
 
@@ -26,16 +27,15 @@ public class ClusterWithFailOver implements Watcher { // define a Zookeeper Watc
     }
 
     private void waitForEventThread() throws InterruptedException {
-        synchronized (zookeeper) {
-            zookeeper.wait();
-        }
+        connection.waitUntilClosed();
     }
 
     // establish connection to zookeeper and return the connection object
     public void connectToZookeeper() {
         if (zookeeper == null) {
             try {
-                this.zookeeper = new ZKConnection().getConnection();
+                this.connection = new ZKConnection();
+                this.zookeeper = connection.getConnection();
             } catch (IOException ex) {
                 System.out.println("Can not connect to ZooKeeper server!");
             }
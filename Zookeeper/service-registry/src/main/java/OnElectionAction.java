@@ -1,15 +1,19 @@
-import org.apache.zookeeper.KeeperException;
+import org.apache.log4j.Logger;
+import zk.classes.Endpoint;
 import zk.classes.OnElectionCallBack;
 import zk.classes.ServiceRegistry;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletionException;
 
 // an implementation for OnElectionCallBack interface
 public class OnElectionAction implements OnElectionCallBack {
+    private static final Logger logger = Logger.getLogger(OnElectionAction.class);
 
     private ServiceRegistry myRegistry;
     private int portNum;
+    private volatile boolean leader = false;
 
     // needs:
     // registry object and
@@ -21,21 +25,40 @@ public class OnElectionAction implements OnElectionCallBack {
 
     @Override
     public void onLeader() {
-        try {
-            myRegistry.unRegisterNode();
-            myRegistry.updateAddresses();
-        } catch (InterruptedException | KeeperException e) {
-            e.printStackTrace();
-        }
+        leader = true;
+        // leave the list of workers and fetch their addresses, without blocking the election callbacks,
+        // then publish the snapshot of the address book for the clients
+        myRegistry.unRegisterNodeAsync()
+                .thenCompose(unregistered -> myRegistry.updateAddressesAsync())
+                .thenRun(() -> {
+                    if (leader) { // unless it has become a follower in the meantime
+                        myRegistry.startPublishingSnapshot();
+                    }
+                })
+                .exceptionally(e -> {
+                    logger.error("Failed to take over as the leader", unwrap(e));
+                    return null;
+                });
     }
 
     @Override
     public void onFollower() {
+        leader = false;
+        myRegistry.stopPublishingSnapshot(); // e.g. if it has lost the leadership along with its session
         try {
-            String serverAddress = String.format("https://%s:%d", InetAddress.getLocalHost().getCanonicalHostName(), portNum);
-            myRegistry.registerNode(serverAddress);
+            String hostName = InetAddress.getLocalHost().getCanonicalHostName();
+            myRegistry.registerNodeAsync(new Endpoint("https", hostName, portNum)) // registered as https://<host>:<port>
+                    .exceptionally(e -> {
+                        logger.error("Failed to register the node", unwrap(e));
+                        return null;
+                    });
         } catch (UnknownHostException e) {
-            e.printStackTrace();
+            logger.error("Failed to resolve the local host name, the node isn't registered", e);
         }
     }
+
+    // returns the failure of an asynchronous call (wrapped in a CompletionException by the dependent stages)
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
 }
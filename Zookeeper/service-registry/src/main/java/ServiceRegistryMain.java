@@ -13,17 +13,22 @@ public class ServiceRegistryMain {
 
     private static final String CLUSTER_NAME = "registry_cluster";
 
-    private ZooKeeper zooKeeper;
+    private ZKConnection zkConn;
 
 
-    // a port number can be passes as an optional argument
+    private static final String DEFAULT_ZK_ADDRESS = "localhost:2181";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    // a port number and a zookeeper address (host:port list) can be passed as optional arguments
     public static void main(String[] args) throws InterruptedException, IOException, KeeperException {
 
-        // get the port number (if provided)
-        int portNum = args.length == 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        // get the port number and the zookeeper address (if provided)
+        int portNum = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String zkAddress = args.length >= 2 ? args[1] : DEFAULT_ZK_ADDRESS;
 
         ServiceRegistryMain app = new ServiceRegistryMain();
-        ZooKeeper zooKeeper = app.connectToZookeeper();
+        ZooKeeper zooKeeper = app.connectToZookeeper(zkAddress);
 
         // create a service registry object
         ServiceRegistry registry = new ServiceRegistry(zooKeeper, ServiceRegistryMain.class.getClassLoader());
@@ -34,23 +39,25 @@ public class ServiceRegistryMain {
         // create a cluster with leader election
         FaultTolerantCluster cluster = new FaultTolerantCluster(CLUSTER_NAME, zooKeeper, electionAction);
 
-        // register a node
-        cluster.addNewNode();
+        // restore the registration and re-join the cluster if the session expires
+        app.zkConn.addSessionListener(registry);
+        app.zkConn.addSessionListener(cluster);
+
+        // join the cluster (the node gets registered once it's elected as a follower)
+        cluster.addNewNodeAsync().join();
 
         app.waitForZKThread();
     }
 
-    private ZooKeeper connectToZookeeper() throws IOException {
-        // make zookeeper connection
-        ZKConnection zkConn = new ZKConnection();
-        this.zooKeeper = zkConn.getConnection();
-        return zooKeeper;
+    private ZooKeeper connectToZookeeper(String zkAddress) throws IOException, InterruptedException {
+        // make zookeeper connection (and wait for the session to be established)
+        this.zkConn = new ZKConnection(zkAddress, SESSION_TIMEOUT);
+        return zkConn.connect(CONNECT_TIMEOUT);
     }
 
-    // synchronise Zookeeper event thread
+    // wait until the connection is closed
+    // (a disconnection or an expired session is recovered by the connection, without exiting the app)
     private void waitForZKThread() throws InterruptedException {
-        synchronized (zooKeeper) {
-            zooKeeper.wait();
-        }
+        zkConn.waitUntilClosed();
     }
 }
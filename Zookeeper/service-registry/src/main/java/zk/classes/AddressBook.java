@@ -0,0 +1,63 @@
+package zk.classes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// An immutable snapshot of the services registered with the service registry.
+// The registry publishes a new snapshot on every change (instead of modifying the current one),
+// hence the snapshots can be read by any thread without locking.
+public final class AddressBook {
+
+    private final SortedMap<String, Endpoint> endpointsByZnode; // sorted by znode name (i.e. by registration order)
+    private final List<Endpoint> endpoints;
+    private final List<String> addresses;
+    private final boolean stale; // whether it is loaded from a local copy (i.e. not synced with Zookeeper)
+    private final int version; // children version (Stat.cversion) of the registry root it reflects (-1 if unknown)
+
+    AddressBook(TreeMap<String, Endpoint> endpointsByZnode, boolean stale) {
+        this(endpointsByZnode, stale, -1);
+    }
+
+    AddressBook(TreeMap<String, Endpoint> endpointsByZnode, boolean stale, int version) {
+        this.stale = stale;
+        this.version = version;
+        this.endpointsByZnode = Collections.unmodifiableSortedMap(endpointsByZnode);
+        this.endpoints = List.copyOf(endpointsByZnode.values());
+        List<String> addresses = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            addresses.add(endpoint.getAddress());
+        }
+        this.addresses = List.copyOf(addresses);
+    }
+
+    // returns the (registry) znode name -> endpoint map
+    public SortedMap<String, Endpoint> getEndpointsByZnode() {
+        return endpointsByZnode;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public List<String> getAddresses() {
+        return addresses;
+    }
+
+    // returns true if the address book is a (possibly outdated) local copy, which is not synced with Zookeeper yet
+    public boolean isStale() {
+        return stale;
+    }
+
+    // returns the children version (Stat.cversion) of the registry root, as of the listing the address book reflects,
+    // or -1 if unknown (e.g. it has been updated by a persistent watch's events rather than by listing the root)
+    public int getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+}
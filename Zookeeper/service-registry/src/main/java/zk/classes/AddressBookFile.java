@@ -0,0 +1,92 @@
+package zk.classes;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// A local (on-disk) copy of the service registry's address book, written on every change,
+// so that a (re)starting process can serve the last known addresses before it has synced with Zookeeper
+// (or while Zookeeper is unavailable).
+//
+// Format:
+//   magic ("ZKAB") | format version (1 byte) | CRC32 of the entries (4 bytes) |
+//   entry count (varint) | znode name | endpoint data | ...
+// where the znode name and the endpoint data are each written as their length (varint) followed by their bytes
+// (see EndpointCodec.encodeEntries()).
+// The file is written through a memory-mapped temporary file, which then atomically replaces the previous one,
+// and read (checked and decoded) in place from a read-only mapping.
+public class AddressBookFile {
+    private static final Logger logger = Logger.getLogger(AddressBookFile.class);
+    private static final byte[] MAGIC = {'Z', 'K', 'A', 'B'};
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+    private final Path path;
+
+    public AddressBookFile(Path path) {
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public void write(AddressBook book) throws IOException {
+        byte[] data = EndpointCodec.encodeEntries(book.getEndpointsByZnode());
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + data.length);
+            buffer.put(MAGIC);
+            buffer.put(FORMAT_VERSION);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(data);
+            buffer.force();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // returns - the address book stored in the file (marked as stale) or null if the file doesn't exist
+    //           or is not readable
+    public AddressBook read() {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid file size: " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            byte version = buffer.get();
+            if (!java.util.Arrays.equals(magic, MAGIC) || version != FORMAT_VERSION) {
+                throw new IOException("Unknown file format");
+            }
+            int expectedCrc = buffer.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate()); // the entries
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Checksum mismatch");
+            }
+
+            TreeMap<String, Endpoint> endpoints = EndpointCodec.decodeEntries(buffer, HEADER_SIZE, (int) size);
+            return new AddressBook(endpoints, true);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Ignoring unreadable address book file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
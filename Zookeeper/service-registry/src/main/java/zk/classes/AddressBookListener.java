@@ -0,0 +1,10 @@
+package zk.classes;
+
+// interface to get notified of the changes to the services registered with a service registry
+public interface AddressBookListener {
+
+    // called with the latest address book once the registered services have changed.
+    // Note: called on the registry's dispatcher thread, a burst of changes may be notified only once
+    //       (with the latest address book)
+    void onAddressBookChanged(AddressBook addressBook);
+}
@@ -0,0 +1,222 @@
+package zk.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A consistent-hash ring over the addresses of the registered services (e.g. to route the requests for a key
+// to the same worker, for cache affinity).
+//
+// Each member owns a number of virtual nodes (tokens) on a 64-bit ring, proportional to its endpoint's weight,
+// and a key belongs to the member owning the first token at or after the key's hash. Hence, when a member
+// joins or leaves, only the keys of its own tokens move.
+// The ring can be fed by a service registry (see ServiceRegistry.addListener()), and it is updated
+// incrementally: only the tokens of the changed members are computed, and merged into (or filtered out of)
+// the sorted tokens of the current ring. Lookups read an immutable snapshot of the ring without any locking.
+public final class ConsistentHashRing implements AddressBookListener {
+    public static final int DEFAULT_VIRTUAL_NODES = 160; // per unit of weight
+
+    private static final long SEED = 0xcbf29ce484222325L; // FNV-1a 64-bit offset basis
+    private static final long PRIME = 0x100000001b3L;       // FNV-1a 64-bit prime
+    private static final long TOKEN_STEP = 0x9e3779b97f4a7c15L; // golden ratio, spreads a member's tokens
+
+    private final int virtualNodes;
+    private volatile Ring ring = new Ring(new long[0], new String[0]);
+    private final Map<String, Integer> members = new HashMap<>(); // address -> its weight (guarded by 'this')
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    // 'virtualNodes' - number of tokens of a member per unit of its weight
+    //                  (more tokens spread the keys more evenly, at the cost of a bigger ring)
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Invalid number of virtual nodes: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    // returns the address of the member owning the given key (or null if the ring is empty)
+    public String get(@NotNull String key) {
+        Ring current = ring;
+        if (current.tokens.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(current.tokens, hash(key));
+        if (index < 0) {
+            index = -index - 1; // the first token after the key's hash
+            if (index == current.tokens.length) {
+                index = 0; // wrap around the ring
+            }
+        }
+        return current.owners[index];
+    }
+
+    @Override
+    public void onAddressBookChanged(AddressBook addressBook) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (Endpoint endpoint : addressBook.getEndpoints()) {
+            weights.merge(endpoint.getAddress(), endpoint.getWeight(), Math::max);
+        }
+        update(weights);
+    }
+
+    // set the members of the ring (with the same weight)
+    public void update(@NotNull Collection<String> addresses) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String address : addresses) {
+            weights.put(address, Endpoint.DEFAULT_WEIGHT);
+        }
+        update(weights);
+    }
+
+    // set the members of the ring along with their weights (a member with no weight owns no tokens).
+    // Only the tokens of the added, removed or re-weighted members are changed
+    public synchronized void update(@NotNull Map<String, Integer> weights) {
+        List<String> removed = new ArrayList<>();
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<String, Integer> member : members.entrySet()) {
+            Integer weight = weights.get(member.getKey());
+            if (weight == null || !weight.equals(member.getValue())) {
+                removed.add(member.getKey());
+            }
+        }
+        for (Map.Entry<String, Integer> member : weights.entrySet()) {
+            if (!member.getValue().equals(members.get(member.getKey())) && member.getValue() > 0) {
+                added.add(member.getKey());
+            }
+        }
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+
+        for (String address : removed) {
+            members.remove(address);
+        }
+        for (String address : added) {
+            members.put(address, weights.get(address));
+        }
+        Ring current = removeMembers(ring, removed);
+        ring = addMembers(current, added);
+    }
+
+    // returns the addresses of the members of the ring
+    public synchronized List<String> getMembers() {
+        return List.copyOf(members.keySet());
+    }
+
+    // returns the total number of tokens (virtual nodes) on the ring
+    public int size() {
+        return ring.tokens.length;
+    }
+
+    private Ring removeMembers(Ring current, List<String> removedMembers) {
+        if (removedMembers.isEmpty()) {
+            return current;
+        }
+        Set<String> removed = new HashSet<>(removedMembers);
+        long[] tokens = new long[current.tokens.length];
+        String[] owners = new String[current.owners.length];
+        int count = 0;
+        for (int i = 0; i < current.tokens.length; i++) {
+            if (!removed.contains(current.owners[i])) {
+                tokens[count] = current.tokens[i];
+                owners[count++] = current.owners[i];
+            }
+        }
+        return new Ring(Arrays.copyOf(tokens, count), Arrays.copyOf(owners, count));
+    }
+
+    // merge the (sorted) tokens of the added members into the (sorted) tokens of the current ring
+    private Ring addMembers(Ring current, List<String> added) {
+        if (added.isEmpty()) {
+            return current;
+        }
+        int addedCount = 0;
+        for (String address : added) {
+            addedCount += tokenCount(address);
+        }
+        Token[] addedTokens = new Token[addedCount];
+        int next = 0;
+        for (String address : added) {
+            long memberHash = hash(address);
+            for (int i = 0, count = tokenCount(address); i < count; i++) {
+                addedTokens[next++] = new Token(mix(memberHash + i * TOKEN_STEP), address);
+            }
+        }
+        Arrays.sort(addedTokens);
+
+        int size = current.tokens.length + addedCount;
+        long[] tokens = new long[size];
+        String[] owners = new String[size];
+        int i = 0, j = 0;
+        for (int k = 0; k < size; k++) {
+            if (j == addedCount || (i < current.tokens.length && current.tokens[i] <= addedTokens[j].token)) {
+                tokens[k] = current.tokens[i];
+                owners[k] = current.owners[i++];
+            } else {
+                tokens[k] = addedTokens[j].token;
+                owners[k] = addedTokens[j++].owner;
+            }
+        }
+        return new Ring(tokens, owners);
+    }
+
+    private int tokenCount(String address) {
+        return virtualNodes * members.get(address);
+    }
+
+    // 64-bit hash of the given string (FNV-1a, with a final mix to spread similar strings over the ring)
+    static long hash(String value) {
+        long hash = SEED;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= PRIME;
+        }
+        return mix(hash);
+    }
+
+    // finalizer of MurmurHash3 (64-bit)
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // an immutable snapshot of the ring: the sorted tokens and the address owning each token
+    private static class Ring {
+        private final long[] tokens;
+        private final String[] owners;
+
+        Ring(long[] tokens, String[] owners) {
+            this.tokens = tokens;
+            this.owners = owners;
+        }
+    }
+
+    private static class Token implements Comparable<Token> {
+        private final long token;
+        private final String owner;
+
+        Token(long token, String owner) {
+            this.token = token;
+            this.owner = owner;
+        }
+
+        @Override
+        public int compareTo(Token other) {
+            return Long.compare(token, other.token);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package zk.classes;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR event of a leader election (see FaultTolerantCluster)
+@Name("zk.Election")
+@Label("Leader Election")
+@Category("ZooKeeper")
+@Description("Election of the cluster's leader, on joining or on the predecessor leaving")
+class ElectionEvent extends jdk.jfr.Event {
+    @Label("Cluster Root")
+    String rootPath;
+
+    @Label("Leader")
+    boolean leader;
+
+    @Label("Retries")
+    @Description("Number of predecessors found missing, and of the steps retried after a connection loss")
+    int retries;
+
+    @Label("Elapsed Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}
@@ -0,0 +1,157 @@
+package zk.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+// An (immutable) value type describing a service registered with the service registry:
+// its protocol, host and port, along with the optional data used by the clients to select a service
+// (weight, zone, version and any other metadata)
+public final class Endpoint {
+    public static final int DEFAULT_WEIGHT = 1;
+
+    private final String protocol; // e.g. "https" (empty if unknown)
+    private final String host;
+    private final int port;        // -1 if unknown
+    private final int weight;
+    private final String zone;     // e.g. an availability zone (empty if unknown)
+    private final String version;  // version of the service (empty if unknown)
+    private final Map<String, String> metadata;
+    private final String address;  // the address of the service in "protocol://host:port" form
+
+    public Endpoint(@NotNull String protocol, @NotNull String host, int port) {
+        this(protocol, host, port, DEFAULT_WEIGHT, "", "", Collections.emptyMap());
+    }
+
+    public Endpoint(@NotNull String protocol, @NotNull String host, int port, int weight,
+                    @NotNull String zone, @NotNull String version, @NotNull Map<String, String> metadata) {
+        this(protocol, host, port, weight, zone, version, metadata, formatAddress(protocol, host, port));
+    }
+
+    private Endpoint(String protocol, String host, int port, int weight,
+                     String zone, String version, Map<String, String> metadata, String address) {
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+        this.zone = zone;
+        this.version = version;
+        this.metadata = metadata.isEmpty() ? Collections.emptyMap()
+                                           : Collections.unmodifiableMap(new TreeMap<>(metadata));
+        this.address = address;
+    }
+
+    // create an endpoint from an address registered in the (older) plain string format
+    // e.g. "https://localhost:8081". The address is kept as it is, and its parts are parsed on a best effort basis.
+    public static Endpoint fromAddress(@NotNull String address) {
+        String protocol = "";
+        String hostAndPort = address;
+        int schemeEnd = address.indexOf("://");
+        if (schemeEnd >= 0) {
+            protocol = address.substring(0, schemeEnd);
+            hostAndPort = address.substring(schemeEnd + 3);
+        }
+
+        String host = hostAndPort;
+        int port = -1;
+        int portStart = hostAndPort.lastIndexOf(':');
+        if (portStart >= 0 && portStart < hostAndPort.length() - 1) {
+            try {
+                port = Integer.parseInt(hostAndPort.substring(portStart + 1));
+                host = hostAndPort.substring(0, portStart);
+            } catch (NumberFormatException e) {
+                port = -1; // not a port number (e.g. a path), keep the whole string as the host
+            }
+        }
+        return new Endpoint(protocol, host, port, DEFAULT_WEIGHT, "", "", Collections.emptyMap(), address);
+    }
+
+    private static String formatAddress(String protocol, String host, int port) {
+        StringBuilder address = new StringBuilder();
+        if (!protocol.isEmpty()) {
+            address.append(protocol).append("://");
+        }
+        address.append(host);
+        if (port >= 0) {
+            address.append(':').append(port);
+        }
+        return address.toString();
+    }
+
+    public Endpoint withWeight(int weight) {
+        return new Endpoint(protocol, host, port, weight, zone, version, metadata, address);
+    }
+
+    public Endpoint withZone(@NotNull String zone) {
+        return new Endpoint(protocol, host, port, weight, zone, version, metadata, address);
+    }
+
+    public Endpoint withVersion(@NotNull String version) {
+        return new Endpoint(protocol, host, port, weight, zone, version, metadata, address);
+    }
+
+    public Endpoint withMetadata(@NotNull String key, @NotNull String value) {
+        TreeMap<String, String> newMetadata = new TreeMap<>(metadata);
+        newMetadata.put(key, value);
+        return new Endpoint(protocol, host, port, weight, zone, version, newMetadata, address);
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Endpoint)) {
+            return false;
+        }
+        Endpoint other = (Endpoint) o;
+        return port == other.port && weight == other.weight && protocol.equals(other.protocol)
+                && host.equals(other.host) && zone.equals(other.zone) && version.equals(other.version)
+                && metadata.equals(other.metadata) && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(protocol, host, port, weight, zone, version, metadata, address);
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
@@ -0,0 +1,242 @@
+package zk.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Encodes an Endpoint into the (binary) data stored in its registry znode and decodes it back.
+//
+// Format (version 1):
+//   marker (0x00) | format version (1 byte) | port (varint, port + 1) | weight (varint) |
+//   protocol | host | zone | version | metadata count (varint) | key | value | ...
+// where each string is written as its UTF-8 length (varint) followed by its UTF-8 bytes.
+//
+// The older plain string format (i.e. just the UTF-8 encoded address) is still decoded:
+// such data never starts with the 0x00 marker.
+public final class EndpointCodec {
+    private static final byte MARKER = 0x00;
+    private static final byte FORMAT_VERSION = 1;
+
+    private EndpointCodec() {
+    }
+
+    public static byte[] encode(@NotNull Endpoint endpoint) {
+        byte[] protocol = endpoint.getProtocol().getBytes(StandardCharsets.UTF_8);
+        byte[] host = endpoint.getHost().getBytes(StandardCharsets.UTF_8);
+        byte[] zone = endpoint.getZone().getBytes(StandardCharsets.UTF_8);
+        byte[] version = endpoint.getVersion().getBytes(StandardCharsets.UTF_8);
+        Map<String, String> metadata = endpoint.getMetadata();
+        byte[][] metadataBytes = new byte[metadata.size() * 2][];
+        int i = 0;
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            metadataBytes[i++] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            metadataBytes[i++] = entry.getValue().getBytes(StandardCharsets.UTF_8);
+        }
+
+        // compute the exact size first, so that the data is written in a single array
+        int size = 2 + varIntSize(endpoint.getPort() + 1) + varIntSize(endpoint.getWeight())
+                + stringSize(protocol) + stringSize(host) + stringSize(zone) + stringSize(version)
+                + varIntSize(metadata.size());
+        for (byte[] bytes : metadataBytes) {
+            size += stringSize(bytes);
+        }
+
+        byte[] data = new byte[size];
+        data[0] = MARKER;
+        data[1] = FORMAT_VERSION;
+        int offset = writeVarInt(data, 2, endpoint.getPort() + 1); // port is -1 if unknown
+        offset = writeVarInt(data, offset, endpoint.getWeight());
+        offset = writeString(data, offset, protocol);
+        offset = writeString(data, offset, host);
+        offset = writeString(data, offset, zone);
+        offset = writeString(data, offset, version);
+        offset = writeVarInt(data, offset, metadata.size());
+        for (byte[] bytes : metadataBytes) {
+            offset = writeString(data, offset, bytes);
+        }
+        return data;
+    }
+
+    // decode the data of a registry znode (in either the binary or the plain string format)
+    // throws - IllegalArgumentException if the data is in an unknown version of the binary format or is corrupt
+    public static Endpoint decode(@NotNull byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    public static Endpoint decode(@NotNull byte[] data, int offset, int length) {
+        return decode(ByteBuffer.wrap(data), offset, length);
+    }
+
+    // decode the data at the given (absolute) offset of the buffer, e.g. of a memory-mapped file
+    static Endpoint decode(ByteBuffer data, int offset, int length) {
+        if (length == 0 || data.get(offset) != MARKER) {
+            return Endpoint.fromAddress(readUtf8(data, offset, length));
+        }
+        if (length < 2 || data.get(offset + 1) != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown endpoint format version: "
+                                               + (length < 2 ? "none" : data.get(offset + 1)));
+        }
+        Reader reader = new Reader(data, offset + 2, offset + length);
+        int port = reader.readVarInt() - 1;
+        int weight = reader.readVarInt();
+        String protocol = reader.readString();
+        String host = reader.readString();
+        String zone = reader.readString();
+        String version = reader.readString();
+        int metadataCount = reader.readVarInt();
+        Map<String, String> metadata = Collections.emptyMap();
+        if (metadataCount > 0) {
+            metadata = new TreeMap<>();
+            for (int i = 0; i < metadataCount; i++) {
+                metadata.put(reader.readString(), reader.readString());
+            }
+        }
+        return new Endpoint(protocol, host, port, weight, zone, version, metadata);
+    }
+
+    // encode the entries of an address book (i.e. its znode name -> endpoint map), as
+    //   entry count (varint) | znode name | endpoint data | ...
+    // where the znode name and the endpoint data are each written as their length (varint) followed by their bytes
+    static byte[] encodeEntries(Map<String, Endpoint> endpoints) {
+        byte[][] entries = new byte[endpoints.size() * 2][];
+        int i = 0;
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            entries[i++] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            entries[i++] = encode(entry.getValue());
+        }
+
+        int size = varIntSize(endpoints.size());
+        for (byte[] bytes : entries) {
+            size += stringSize(bytes);
+        }
+        byte[] data = new byte[size];
+        int offset = writeVarInt(data, 0, endpoints.size());
+        for (byte[] bytes : entries) {
+            offset = writeString(data, offset, bytes);
+        }
+        return data;
+    }
+
+    // decode the entries written by encodeEntries()
+    // throws - IllegalArgumentException if the data is corrupt
+    static TreeMap<String, Endpoint> decodeEntries(byte[] data, int offset, int end) {
+        return decodeEntries(ByteBuffer.wrap(data), offset, end);
+    }
+
+    // decode the entries at the given (absolute) offsets of the buffer, e.g. of a memory-mapped file (i.e. without
+    // copying it to an array first)
+    static TreeMap<String, Endpoint> decodeEntries(ByteBuffer data, int offset, int end) {
+        Reader reader = new Reader(data, offset, end);
+        int count = reader.readVarInt();
+        TreeMap<String, Endpoint> endpoints = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            String znodeName = reader.readString();
+            int length = reader.readVarInt();
+            int start = reader.getOffset();
+            reader.skip(length);
+            endpoints.put(znodeName, decode(data, start, length));
+        }
+        return endpoints;
+    }
+
+    // number of bytes needed to write the given (non-negative) int as a varint
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // write the given (non-negative) int as a varint (7 bits per byte, lowest bits first)
+    // returns - the offset after the written bytes
+    static int writeVarInt(byte[] data, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return varIntSize(bytes.length) + bytes.length;
+    }
+
+    private static int writeString(byte[] data, int offset, byte[] bytes) {
+        offset = writeVarInt(data, offset, bytes.length);
+        System.arraycopy(bytes, 0, data, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    // returns the string of the given UTF-8 bytes of the buffer (read in place if the buffer has an array)
+    private static String readUtf8(ByteBuffer data, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        data.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // reads the fields directly from the given buffer (at absolute offsets), one after another
+    static class Reader {
+        private final ByteBuffer data;
+        private final int end;
+        private int offset;
+
+        Reader(ByteBuffer data, int offset, int end) {
+            this.data = data;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at offset " + offset);
+        }
+
+        String readString() {
+            int length = readVarInt();
+            if (length < 0 || length > end - offset) {
+                throw new IllegalArgumentException("Malformed string length at offset " + offset);
+            }
+            String value = readUtf8(data, offset, length);
+            offset += length;
+            return value;
+        }
+
+        byte readByte() {
+            if (offset >= end) {
+                throw new IllegalArgumentException("Unexpected end of the data");
+            }
+            return data.get(offset++);
+        }
+
+        void skip(int length) {
+            if (length < 0 || length > end - offset) {
+                throw new IllegalArgumentException("Malformed length at offset " + offset);
+            }
+            offset += length;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+    }
+}
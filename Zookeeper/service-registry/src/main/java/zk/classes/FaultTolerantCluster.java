@@ -1,25 +1,55 @@
 package zk.classes;
 
+import org.apache.log4j.Logger;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
 import javax.naming.InsufficientResourcesException;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 // A utility class to manage a fault-tolerant cluster that
 // also supports callbacks for service registry
-public class FaultTolerantCluster implements Watcher { // define a Zookeeper Watcher(event-handler) class
+public class FaultTolerantCluster implements Watcher, SessionListener { // define a Zookeeper Watcher(event-handler) class
+    private static final String NODE_PREFIX = "c_"; // prefix of the cluster's znodes ("c_" = child node)
+    private static final Logger logger = Logger.getLogger(FaultTolerantCluster.class);
+    // metrics (see Metrics)
+    static final String ELECTION_DURATION_METRIC = "election.duration";
+    static final String ELECTION_RETRIES_METRIC = "election.retries";
     private String rootZNodePath;
-    private ZooKeeper zookeeper; // zookeeper client object
-    private String currentZnodeName;  // current znode's name
+    private volatile ZooKeeper zookeeper; // zookeeper client object (replaced once the session has expired)
+    private volatile String currentZnodeName;  // current znode's name
+
+    // election state, only accessed on the Zookeeper event thread (except for starting a new election)
+    private volatile long electionId = 0;
+    private long[] sequences;         // sorted sequence numbers of the cluster's znodes when the election started
+    private int predecessorIndex;     // index (in 'sequences') of the predecessor to watch (-1 = none, i.e. leader)
+    private String watchedPredecessor; // path of the currently watched predecessor
+    private Runnable retryOnConnected; // election step to retry once reconnected (if it failed on a connection loss)
+    private long electionStartNanos;   // when the current election started (on joining or on the predecessor leaving)
+    private int electionRetries;       // missing predecessors and retried steps of the current election
+
+    private Runnable joinAwaitingQuorum; // join rejected by a read-only server (guarded by 'this')
 
     private OnElectionCallBack electionCallback;
+    private final EventDispatcher dispatcher; // runs the re-elections off the Zookeeper event thread
+    private volatile boolean ownsDispatcher = false; // whether the dispatcher was created by (and shut down with) it
+    private volatile boolean closed = false;
 
     // Initialise a zookeeper cluster with given Znode root
     public FaultTolerantCluster(String clusterRootName, ZooKeeper zooKeeper, OnElectionCallBack electionCallback) throws InterruptedException, KeeperException {
+        this(clusterRootName, zooKeeper, electionCallback, new EventDispatcher("cluster-election"));
+        ownsDispatcher = true;
+    }
+
+    // 'dispatcher' - runs the re-elections (and hence the election callbacks) triggered by the watches
+    public FaultTolerantCluster(String clusterRootName, ZooKeeper zooKeeper, OnElectionCallBack electionCallback,
+                                EventDispatcher dispatcher) throws InterruptedException, KeeperException {
         this.zookeeper = zooKeeper;
         this.electionCallback = electionCallback;
+        this.dispatcher = dispatcher;
         setRootZNode(clusterRootName);
     }
 
@@ -31,10 +61,13 @@ public class FaultTolerantCluster implements Watcher { // define a Zookeeper Wat
         // create a parchment root node if it doesn't exist already
         Stat stat = zookeeper.exists(rootPath, this);
         if (stat == null) {
-            zookeeper.create(rootPath, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            System.out.println("Root ZNode created!");
+            try {
+                zookeeper.create(rootPath, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                logger.info("Root znode created: " + rootPath);
+            } catch (KeeperException.NodeExistsException ex) {
+                // created by another node in the meantime
+            }
         }
-        System.out.println("Root path: " + rootPath);
         rootZNodePath = rootPath;
     }
 
@@ -43,61 +76,304 @@ public class FaultTolerantCluster implements Watcher { // define a Zookeeper Wat
     }
 
     // This method creates a new znode under the root with a new sequence id assigned by the ZK server.
-    // It also queries for the leader or a watcher node in the existing cluster after creating one
+    // It also starts the election (asynchronously) for the leader or a watcher node in the existing cluster
+    // after creating one
     // returns - newly created znode's name
+    // throws - NotReadOnlyException if connected to a read-only server (addNewNodeAsync() waits for the quorum)
     public String addNewNode() throws InterruptedException, KeeperException {
 
-        String znodePrefix = rootZNodePath + "/c_"; // full path prefix for creating new modes ("c_" = child node)
+        String znodePrefix = rootZNodePath + "/" + NODE_PREFIX; // full path prefix for creating new modes
         String znodeFullPath = zookeeper.create(znodePrefix, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
                                             CreateMode.EPHEMERAL_SEQUENTIAL);   // creates a new temporary (ephemeral) znode
                                                                                 // using given prefix and appending it with a new sequence id
 
-        System.out.println("znode's full path: " + znodeFullPath);
+        logger.info("znode's full path: " + znodeFullPath);
         this.currentZnodeName = znodeFullPath.replace(rootZNodePath + "/", ""); // extract only the name (without its path)
 
-        electLeaderWithFailOver();
+        startElection(parseSequence(currentZnodeName));
         return currentZnodeName;
     }
 
-    private void electLeaderWithFailOver() throws InterruptedException, KeeperException {
-        Stat stats = null;
-        String predecessorName = "";
+    // non-blocking version of addNewNode()
+    // returns - a future completed with the name of the new znode once the election has been started (the role is
+    //           still notified via the OnElectionCallBack), or failed with the KeeperException of the creation.
+    //           The future is completed off the Zookeeper event thread (see ZkFutures.offEventThread())
+    public CompletableFuture<String> addNewNodeAsync() {
+        CompletableFuture<String> added = new CompletableFuture<>();
+        addNewNodeAsync(added);
+        return ZkFutures.offEventThread(added);
+    }
 
-        // keep repeating the loop until we are the leader, or we find a valid znode to watch
-        while (stats == null) {
-            List<String> children = zookeeper.getChildren(rootZNodePath, false);
-            Collections.sort(children); // sort the nodes by their sequence (names)
-            // now if the smallest child is same as the current znode then it is the leader
-            String smallestNode = children.get(0);
-            if (smallestNode.equals(currentZnodeName)) {
-                System.out.println("I am the leader!");
-                electionCallback.onLeader();
+    private void addNewNodeAsync(CompletableFuture<String> added) {
+        long startNanos = System.nanoTime();
+        zookeeper.create(rootZNodePath + "/" + NODE_PREFIX, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                         CreateMode.EPHEMERAL_SEQUENTIAL, (rc, path, ctx, name) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.CREATE, path, startNanos, rc);
+            if (rc == KeeperException.Code.NOTREADONLY.intValue()) {
+                awaitQuorum(() -> addNewNodeAsync(added));
+                return;
+            }
+            if (rc == KeeperException.Code.OK.intValue()) {
+                logger.info("znode's full path: " + name);
+                currentZnodeName = name.substring(rootZNodePath.length() + 1);
+                startElection(parseSequence(currentZnodeName));
+                name = currentZnodeName;
+            }
+            ZkFutures.complete(added, rc, path, name);
+        }, null);
+    }
+
+    // hand the leadership (or the node's place in the queue) over to the next node, by re-joining the cluster at
+    // the end of the queue (e.g. to balance the leadership of many clusters, see ShardedCluster)
+    // returns - a future completed with the name of the new znode (see addNewNodeAsync())
+    public CompletableFuture<String> rejoinAtTail() {
+        CompletableFuture<String> rejoined = new CompletableFuture<>();
+        String znodePath = rootZNodePath + "/" + currentZnodeName;
+        long startNanos = System.nanoTime();
+        zookeeper.delete(znodePath, -1, (rc, path, ctx) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.DELETE, path, startNanos, rc);
+            if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+                ZkFutures.complete(rejoined, rc, path, null);
+                return;
+            }
+            electionId++; // the election of the deleted znode is over
+            watchedPredecessor = null;
+            addNewNodeAsync(rejoined);
+        }, null);
+        return ZkFutures.offEventThread(rejoined);
+    }
+
+    // list the cluster's znodes once, and index their sequence numbers (sorted) to look for the predecessor.
+    // The index never needs to be listed again for this znode: a node which joins later always gets a greater
+    // sequence number, hence the predecessors can only be deleted (and are then skipped in the index).
+    private void startElection(long ownSequence) {
+        long election = ++electionId; // ignore the callbacks of a previous election (i.e. of a previous znode)
+        long startNanos = System.nanoTime();
+        zookeeper.getChildren(rootZNodePath, false, (rc, path, ctx, children) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, rootZNodePath, startNanos, rc);
+            if (election != electionId) {
+                return;
+            }
+            if (electionStartNanos == 0) {
+                electionStartNanos = startNanos;
+            }
+            if (rc != KeeperException.Code.OK.intValue()) {
+                electionFailed(rc, () -> startElection(ownSequence));
+                return;
+            }
+            sequences = parseSequences(children);
+            int ownIndex = Arrays.binarySearch(sequences, ownSequence);
+            if (ownIndex < 0) {
+                logger.warn("Znode " + currentZnodeName + " no longer exists, not electing a leader");
                 return;
+            }
+            predecessorIndex = ownIndex - 1;
+            watchPredecessor(election);
+        }, null);
+    }
+
+    // watch the closest predecessor that still exists (or else become the leader).
+    // Each check is a single exists() call, a missing predecessor moves on to the next one in the index
+    private void watchPredecessor(long election) {
+        if (predecessorIndex < 0) {
+            watchedPredecessor = null;
+            recordElection(true);
+            notifyRole(true, null);
+            return;
+        }
+        String predecessorPath = rootZNodePath + "/" + znodeName(sequences[predecessorIndex]);
+        long startNanos = System.nanoTime();
+        zookeeper.exists(predecessorPath, this, (rc, path, ctx, stat) -> {
+            // a missing predecessor is an expected outcome (not a failure) of the check
+            Metrics.recordOperation(Metrics.ZkOperation.EXISTS, path, startNanos,
+                                    rc == KeeperException.Code.NONODE.intValue()
+                                    ? KeeperException.Code.OK.intValue() : rc);
+            if (election != electionId) {
+                return;
+            }
+            if (rc == KeeperException.Code.OK.intValue()) {
+                watchedPredecessor = path; // watch the predecessor
+                recordElection(false);
+                notifyRole(false, path);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                electionRetries++;
+                predecessorIndex--;
+                watchPredecessor(election);
             } else {
-                System.out.println("I am NOT the leader.\nThe leader is: " + smallestNode);
+                electionFailed(rc, () -> watchPredecessor(election));
+            }
+        }, null);
+    }
+
+    // retry the failed step of the election once reconnected
+    // (an expired session is recovered by re-joining the cluster instead, see onSessionRecovered())
+    private void electionFailed(int rc, Runnable retry) {
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        logger.warn("Leader election failed: " + code);
+        if (code == KeeperException.Code.CONNECTIONLOSS) {
+            electionRetries++;
+            retryOnConnected = retry;
+        }
+    }
+
+    private void recordElection(boolean leader) {
+        long durationNanos = System.nanoTime() - electionStartNanos;
+        int retries = electionRetries;
+        electionStartNanos = 0;
+        electionRetries = 0;
+        Metrics.record(ELECTION_DURATION_METRIC, durationNanos);
+        Metrics.record(ELECTION_RETRIES_METRIC, retries);
+
+        ElectionEvent event = new ElectionEvent();
+        if (event.shouldCommit()) {
+            event.rootPath = rootZNodePath;
+            event.leader = leader;
+            event.retries = retries;
+            event.elapsed = durationNanos;
+            event.commit();
+        }
+    }
 
-                // find the previous (predecessor) znode
-                int predecessorIndex = Collections.binarySearch(children, currentZnodeName) - 1;
-                predecessorName = children.get(predecessorIndex);
-                stats = zookeeper.exists(rootZNodePath + "/" + predecessorName, this); // watch the predecessor
+    // run the election callbacks for the new role on the dispatcher's thread (the callbacks may block,
+    // which must not happen on the Zookeeper event thread the election runs on)
+    private void notifyRole(boolean leader, String predecessorPath) {
+        dispatcher.dispatch(rootZNodePath, () -> {
+            if (leader) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Elected as the leader of " + rootZNodePath);
+                }
+                electionCallback.onLeader();
+            } else {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Follower in " + rootZNodePath + ", watching " + predecessorPath);
+                }
+                electionCallback.onFollower();
+            }
+        });
+    }
+
+    // leave the cluster: stop taking part in the elections and delete the node's znode (the next node takes over,
+    // if it was the leader). The cluster's own dispatcher (see FaultTolerantCluster(rootName, zooKeeper, callback))
+    // is shut down, a dispatcher given to the cluster is not (it may be shared)
+    public void close() throws InterruptedException {
+        closed = true;
+        electionId++; // ignore the callbacks of the current election
+        String znodeName = currentZnodeName;
+        if (znodeName != null) {
+            String znodePath = rootZNodePath + "/" + znodeName;
+            long startNanos = System.nanoTime();
+            try {
+                zookeeper.delete(znodePath, -1);
+                Metrics.recordOperation(Metrics.ZkOperation.DELETE, znodePath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+            } catch (KeeperException.NoNodeException e) {
+                // removed along with an expired session
+                Metrics.recordOperation(Metrics.ZkOperation.DELETE, znodePath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+            } catch (KeeperException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.DELETE, znodePath, startNanos, e.code().intValue());
+                logger.warn("Failed to leave the cluster " + rootZNodePath + ": " + e.getMessage());
+            }
+        }
+        if (ownsDispatcher) {
+            dispatcher.shutdown();
+        }
+    }
+
+    // returns the sorted sequence numbers of the cluster's znodes
+    private static long[] parseSequences(List<String> children) {
+        long[] parsed = new long[children.size()];
+        int count = 0;
+        for (String child : children) {
+            if (child.startsWith(NODE_PREFIX)) {
+                parsed[count++] = parseSequence(child);
             }
         }
-        electionCallback.onFollower();
-        System.out.println("Watching node: " + predecessorName);
-        System.out.println();
+        Arrays.sort(parsed, 0, count);
+        return count == parsed.length ? parsed : Arrays.copyOf(parsed, count);
+    }
+
+    // returns the sequence number of the given znode name (e.g. 12 for c_0000000012)
+    private static long parseSequence(String name) {
+        return Long.parseLong(name, NODE_PREFIX.length(), name.length(), 10);
+    }
+
+    // returns the znode name of the given sequence number (formatted as the Zookeeper server does)
+    private static String znodeName(long sequence) {
+        return NODE_PREFIX + String.format(Locale.ENGLISH, "%010d", sequence);
+    }
+
+    // re-join the cluster on a new session (see ZKConnection): the node's znode was removed along with the
+    // expired session, hence a new one is created (at the end of the queue) and the leader is elected again
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zookeeper = zooKeeper;
+        if (currentZnodeName == null || closed) {
+            return; // hasn't joined the cluster yet (or has left it)
+        }
+        dispatcher.execute(this::rejoin);
+    }
+
+    private void rejoin() {
+        if (closed) {
+            return;
+        }
+        try {
+            setRootZNode(rootZNodePath);
+            addNewNode();
+        } catch (KeeperException.NotReadOnlyException ex) {
+            awaitQuorum(this::rejoin);
+        } catch (KeeperException ex) {
+            logger.error("Failed to re-join the cluster " + rootZNodePath, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // defer joining the cluster (rejected by a read-only server) until the quorum is restored (see
+    // onReadWriteRestored()), unless the client has switched to a server with quorum in the meantime
+    private synchronized void awaitQuorum(Runnable join) {
+        if (zookeeper.getState() == ZooKeeper.States.CONNECTED) {
+            dispatcher.execute(join);
+            return;
+        }
+        logger.info("Connected to a read-only server, joining the cluster once the quorum is restored");
+        joinAwaitingQuorum = join;
+    }
+
+    // join the cluster, if it has been rejected by a read-only server (see ZKConnection.forDiscovery())
+    @Override
+    public synchronized void onReadWriteRestored(ZooKeeper zooKeeper) {
+        if (joinAwaitingQuorum != null) {
+            dispatcher.execute(joinAwaitingQuorum);
+            joinAwaitingQuorum = null;
+        }
     }
 
     // implement event handler method 'process' of Watcher Interface (to handle zookeeper events)
     // Note: This is a callback which will be executed on a separate (Zookeeper Event)
-    //       thread when a Zookeeper event occurs
+    //       thread when a Zookeeper event occurs. The re-election only issues asynchronous calls,
+    //       while the election callbacks are dispatched to the dispatcher's thread
     @Override
     public void process(WatchedEvent event) {
+        if (closed) {
+            return;
+        }
         switch(event.getType()) {
+            case None:
+                if (event.getState() == Event.KeeperState.SyncConnected && retryOnConnected != null) {
+                    Runnable retry = retryOnConnected;
+                    retryOnConnected = null;
+                    retry.run();
+                }
+                break;
             case NodeDeleted:
-                try{
-                    electLeaderWithFailOver();
-                }catch (KeeperException ex) {
-                }catch (InterruptedException ex) {
+                // the predecessor has left, check the next one in the index (without listing the cluster again)
+                if (event.getPath().equals(watchedPredecessor)) {
+                    watchedPredecessor = null;
+                    electionStartNanos = System.nanoTime();
+                    predecessorIndex--;
+                    watchPredecessor(electionId);
                 }
                 break;
         }
@@ -0,0 +1,88 @@
+package zk.classes;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// "power of two choices" strategy:
+// picks two registered services at random and selects the one with fewer outstanding requests.
+// This avoids the overloaded services almost as well as always picking the least loaded one,
+// without having to scan (or keep sorted) the whole list of services.
+// Note: callers must call release() once the request sent to the selected service has finished
+public class LeastOutstandingSelector implements ServiceSelector {
+    private final ServiceRegistry registry;
+    private volatile Counters counters = new Counters(List.of(), Map.of());
+
+    public LeastOutstandingSelector(ServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public String select() {
+        List<String> addresses = registry.getAllServiceAddresses();
+        if (addresses == null || addresses.isEmpty()) {
+            return null;
+        }
+        Counters current = counters;
+        if (current.addresses != addresses) {
+            current = updateCounters(addresses);
+        }
+
+        int size = addresses.size();
+        int selected = 0;
+        if (size > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if (second >= first) {
+                second++; // make sure the two choices are different
+            }
+            selected = current.outstanding[first].get() <= current.outstanding[second].get() ? first : second;
+        }
+        current.outstanding[selected].incrementAndGet();
+        return addresses.get(selected);
+    }
+
+    @Override
+    public void release(String address) {
+        AtomicInteger outstanding = counters.byAddress.get(address);
+        if (outstanding != null) {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    // rebuild the counters for a new list of addresses (only when the registered services change).
+    // The counters of the services which are still registered are carried over.
+    private synchronized Counters updateCounters(List<String> addresses) {
+        Counters current = counters;
+        if (current.addresses == addresses) {
+            return current; // already updated by another thread
+        }
+        Map<String, AtomicInteger> byAddress = new HashMap<>();
+        for (String address : addresses) {
+            AtomicInteger outstanding = current.byAddress.get(address);
+            byAddress.put(address, outstanding != null ? outstanding : new AtomicInteger());
+        }
+        current = new Counters(addresses, byAddress);
+        counters = current;
+        return current;
+    }
+
+    // outstanding requests of each service, for a single (immutable) list of addresses
+    private static class Counters {
+        private final List<String> addresses;
+        private final AtomicInteger[] outstanding; // in the order of addresses
+        private final Map<String, AtomicInteger> byAddress;
+
+        Counters(List<String> addresses, Map<String, AtomicInteger> byAddress) {
+            this.addresses = addresses;
+            this.byAddress = byAddress;
+            this.outstanding = new AtomicInteger[addresses.size()];
+            for (int i = 0; i < outstanding.length; i++) {
+                outstanding[i] = byAddress.get(addresses.get(i));
+            }
+        }
+    }
+}
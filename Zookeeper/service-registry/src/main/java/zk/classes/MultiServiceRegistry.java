@@ -0,0 +1,189 @@
+package zk.classes;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// A service registry for multiple services, laid out as /service_registry/<service>/<instance>.
+//
+// The instances of each service are watched and cached by a separate ServiceRegistry (rooted at the
+// service's znode), which is only created (i.e. subscribed) once the client looks the service up,
+// and is closed again once the service hasn't been looked up for the idle period.
+// Hence, a client only watches and caches the services it actually calls.
+public class MultiServiceRegistry implements SessionListener {
+    private static final Logger logger = Logger.getLogger(MultiServiceRegistry.class);
+    private static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private volatile ZooKeeper zooKeeper; // replaced by a new one once the session has expired
+    private final boolean persistentWatch;
+    private final long idleNanos;
+    private final EventDispatcher dispatcher; // shared by the registries of all the services
+    private final Future<?> evictionTask; // periodic eviction of the idle subscriptions
+    private volatile boolean closed = false;
+
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>(); // service -> its subscription
+    private final Map<String, ServiceRegistry> registrations = new ConcurrentHashMap<>(); // service -> its registry
+
+    public MultiServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader) {
+        this(zooKeeper, classLoader, false, DEFAULT_IDLE_MILLIS);
+    }
+
+    // 'persistentWatch' - watch each subscribed service with a persistent watch (see ServiceRegistry)
+    // 'idleMillis' - time after which a service which hasn't been looked up is unsubscribed
+    public MultiServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader, boolean persistentWatch, long idleMillis) {
+
+        // initialise logger object
+        PropertyConfigurator.configure(classLoader.getResource("registry.log4j.properties"));
+
+        this.zooKeeper = zooKeeper;
+        this.persistentWatch = persistentWatch;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.dispatcher = new EventDispatcher("multi-service-registry", 1,
+                                              ServiceRegistry.DEFAULT_DEBOUNCE_MILLIS,
+                                              ServiceRegistry.DEFAULT_MAX_STALENESS_MILLIS);
+        try {
+            if (zooKeeper.exists(ServiceRegistry.ZNODE_ROOT, false) == null) {
+                zooKeeper.create(ServiceRegistry.ZNODE_ROOT, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                 CreateMode.PERSISTENT);
+                logger.info("Root znode created for the service registry!");
+            }
+        } catch (KeeperException.NodeExistsException e) {
+            // created by another client in the meantime
+        } catch (InterruptedException | KeeperException e) {
+            throw new RuntimeException(e);
+        }
+
+        // look for the idle subscriptions a few times within the idle period
+        evictionTask = dispatcher.scheduleAtFixedRate(this::evictIdleSubscriptions, Math.max(idleMillis / 4, 1));
+    }
+
+    // method to register a worker node's endpoint as an instance of the given service
+    public void registerNode(@NotNull String service, @NotNull Endpoint endpoint) {
+        registrations.computeIfAbsent(service, this::createRegistry).registerNode(endpoint);
+    }
+
+    // method to unregister a worker node from the given service
+    public void unRegisterNode(@NotNull String service) {
+        ServiceRegistry registry = registrations.get(service);
+        if (registry != null) {
+            registry.unRegisterNode();
+        }
+    }
+
+    // returns the registry of the given service (subscribing to the service if it isn't subscribed already)
+    // Note: the returned registry stops being updated once the subscription is evicted,
+    //       hence look it up again (cheap) rather than keeping a reference to it
+    public ServiceRegistry getRegistry(@NotNull String service) {
+        if (closed) {
+            throw new IllegalStateException("The registry is closed");
+        }
+        Subscription subscription = subscriptions.get(service);
+        if (subscription == null) {
+            subscription = subscribe(service);
+        }
+        subscription.lastAccessNanos = System.nanoTime();
+        return subscription.registry;
+    }
+
+    public List<String> getAllServiceAddresses(@NotNull String service) {
+        return getRegistry(service).getAllServiceAddresses();
+    }
+
+    public List<Endpoint> getAllEndpoints(@NotNull String service) {
+        return getRegistry(service).getAllEndpoints();
+    }
+
+    // returns the number of the currently subscribed services
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    // close the registries of all the services (i.e. remove their watches) and shut down the dispatcher
+    // Note: the registered nodes are not unregistered (they're removed once the session ends)
+    public void close() {
+        closed = true;
+        evictionTask.cancel(false);
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            if (subscriptions.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().registry.close();
+            }
+        }
+        for (ServiceRegistry registry : registrations.values()) {
+            registry.close();
+        }
+        dispatcher.shutdown();
+    }
+
+    // restore the registered nodes and the subscriptions on a new session (see ZKConnection)
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zooKeeper = zooKeeper;
+        for (ServiceRegistry registry : registrations.values()) {
+            registry.onSessionRecovered(zooKeeper);
+        }
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.registry.onSessionRecovered(zooKeeper);
+        }
+    }
+
+    // issue the registrations rejected by a read-only server, and resync the subscriptions (see ZKConnection)
+    @Override
+    public void onReadWriteRestored(ZooKeeper zooKeeper) {
+        for (ServiceRegistry registry : registrations.values()) {
+            registry.onReadWriteRestored(zooKeeper);
+        }
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.registry.onReadWriteRestored(zooKeeper);
+        }
+    }
+
+    private Subscription subscribe(String service) {
+        Subscription subscription = new Subscription(createRegistry(service));
+        Subscription existing = subscriptions.putIfAbsent(service, subscription);
+        if (existing != null) {
+            subscription.registry.close(); // subscribed by another thread in the meantime
+            return existing;
+        }
+        logger.info("Subscribed to service: " + service);
+        return subscription;
+    }
+
+    private ServiceRegistry createRegistry(String service) {
+        if (service.isEmpty() || service.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Invalid service name: " + service);
+        }
+        return new ServiceRegistry(zooKeeper, null, ServiceRegistry.ZNODE_ROOT + "/" + service,
+                                   persistentWatch, dispatcher, null);
+    }
+
+    private void evictIdleSubscriptions() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            Subscription subscription = entry.getValue();
+            if (now - subscription.lastAccessNanos > idleNanos
+                    && subscriptions.remove(entry.getKey(), subscription)) {
+                subscription.registry.close();
+                logger.info("Unsubscribed from idle service: " + entry.getKey());
+            }
+        }
+    }
+
+    private static class Subscription {
+        private final ServiceRegistry registry;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        Subscription(ServiceRegistry registry) {
+            this.registry = registry;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package zk.classes;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// selects a registered service uniformly at random
+public class RandomSelector implements ServiceSelector {
+    private final ServiceRegistry registry;
+
+    public RandomSelector(ServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public String select() {
+        List<String> addresses = registry.getAllServiceAddresses();
+        if (addresses == null || addresses.isEmpty()) {
+            return null;
+        }
+        return addresses.get(ThreadLocalRandom.current().nextInt(addresses.size()));
+    }
+}
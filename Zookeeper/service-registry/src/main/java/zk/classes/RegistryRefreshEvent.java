@@ -0,0 +1,30 @@
+package zk.classes;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR event of a refresh of the service registry's addresses (see ServiceRegistry)
+@Name("zk.RegistryRefresh")
+@Label("Registry Refresh")
+@Category("ZooKeeper")
+@Description("Refresh of the service registry's addresses")
+class RegistryRefreshEvent extends jdk.jfr.Event {
+    @Label("Registry Root")
+    String rootPath;
+
+    @Label("Members")
+    int members;
+
+    @Label("Data Reads")
+    int reads;
+
+    @Label("Result Code")
+    int resultCode;
+
+    @Label("Elapsed Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}
@@ -0,0 +1,105 @@
+package zk.classes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Encodes the registry's address book into the (compressed) data of its snapshot znode, published by the
+// cluster's leader so that the clients read the whole membership with a single getData() (see ServiceRegistry).
+//
+// Format:
+//   magic ("ZKRS") | format version (1 byte) | version of the address book (4 bytes) |
+//   CRC32 of the entries (4 bytes) | size of the entries (4 bytes) | entries, compressed with Deflate
+// where the version is the children version (Stat.cversion) of the registry root the address book reflects,
+// and the entries are written as in the local copy of the address book (see EndpointCodec.encodeEntries()).
+public final class RegistrySnapshot {
+    private static final byte[] MAGIC = {'Z', 'K', 'R', 'S'};
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4 + 4 + 4;
+    private static final int MAX_ENTRIES_SIZE = 64 * 1024 * 1024; // bound of the decompressed entries
+
+    private RegistrySnapshot() {
+    }
+
+    public static byte[] encode(AddressBook book) {
+        byte[] entries = EndpointCodec.encodeEntries(book.getEndpointsByZnode());
+        CRC32 crc = new CRC32();
+        crc.update(entries);
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + entries.length / 4 + 64);
+        out.writeBytes(ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put(FORMAT_VERSION).putInt(book.getVersion())
+                                 .putInt((int) crc.getValue()).putInt(entries.length).array());
+        try {
+            deflater.setInput(entries);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    // returns the version of the address book in the given snapshot data (without decompressing it)
+    // throws - IllegalArgumentException if the data is not a snapshot (in a known version of the format)
+    public static int version(byte[] data) {
+        return readHeader(data).getInt(MAGIC.length + 1);
+    }
+
+    // returns - the address book of the given snapshot data (along with its version)
+    // throws - IllegalArgumentException if the data is not a snapshot, or is corrupt
+    public static AddressBook decode(byte[] data) {
+        ByteBuffer header = readHeader(data);
+        int version = header.getInt(MAGIC.length + 1);
+        int expectedCrc = header.getInt(MAGIC.length + 5);
+        int size = header.getInt(MAGIC.length + 9);
+        if (size < 0 || size > MAX_ENTRIES_SIZE) {
+            throw new IllegalArgumentException("Invalid size of the snapshot entries: " + size);
+        }
+
+        byte[] entries = new byte[size];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+            int inflated = 0;
+            while (inflated < size && !inflater.finished()
+                   && !inflater.needsInput() && !inflater.needsDictionary()) {
+                inflated += inflater.inflate(entries, inflated, size - inflated);
+            }
+            if (inflated != size || !inflater.finished()) {
+                throw new IllegalArgumentException("Truncated snapshot entries");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt snapshot entries: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(entries);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IllegalArgumentException("Checksum mismatch");
+        }
+
+        TreeMap<String, Endpoint> endpoints = EndpointCodec.decodeEntries(entries, 0, entries.length);
+        return new AddressBook(endpoints, false, version);
+    }
+
+    private static ByteBuffer readHeader(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE
+            || !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IllegalArgumentException("Not a registry snapshot");
+        }
+        if (data[MAGIC.length] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown snapshot format version: " + data[MAGIC.length]);
+        }
+        return ByteBuffer.wrap(data, 0, HEADER_SIZE);
+    }
+}
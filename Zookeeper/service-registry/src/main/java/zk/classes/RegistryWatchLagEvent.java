@@ -0,0 +1,21 @@
+package zk.classes;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR event of a lag from a watch event to the registry's address book being updated (see ServiceRegistry)
+@Name("zk.RegistryWatchLag")
+@Label("Registry Watch Lag")
+@Category("ZooKeeper")
+@Description("Time from a watch event to the service registry's cache reflecting it")
+class RegistryWatchLagEvent extends jdk.jfr.Event {
+    @Label("Registry Root")
+    String rootPath;
+
+    @Label("Lag")
+    @Timespan(Timespan.NANOSECONDS)
+    long lag;
+}
@@ -0,0 +1,28 @@
+package zk.classes;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// selects the registered services one after another (in a circular order).
+// Each request thread keeps its own position (starting at a random service), so the threads never
+// contend on a shared counter while the services still get an equal share of each thread's requests
+public class RoundRobinSelector implements ServiceSelector {
+    private final ServiceRegistry registry;
+    private final ThreadLocal<int[]> position = ThreadLocal.withInitial(() ->
+            new int[]{ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE)});
+
+    public RoundRobinSelector(ServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public String select() {
+        List<String> addresses = registry.getAllServiceAddresses();
+        if (addresses == null || addresses.isEmpty()) {
+            return null;
+        }
+        int[] next = position.get();
+        int index = next[0]++ & Integer.MAX_VALUE; // keep the index positive after an overflow
+        return addresses.get(index % addresses.size());
+    }
+}
@@ -8,123 +8,1429 @@ import org.apache.zookeeper.data.Stat;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class ServiceRegistry implements Watcher {
-    private static final String ZNODE_ROOT = "/service_registry";
+public class ServiceRegistry implements Watcher, SessionListener {
+    static final String ZNODE_ROOT = "/service_registry";
+    // root of the snapshots of the address books (mirroring the registries' roots, see RegistrySnapshot)
+    static final String SNAPSHOT_ROOT = "/service_registry_snapshot";
+    private static final String NODE_PREFIX = "n_"; // prefix of the znodes of the registered workers
     private static final Logger logger = Logger.getLogger(ServiceRegistry.class);
-    private ZooKeeper zooKeeper;
+    static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+    static final long DEFAULT_MAX_STALENESS_MILLIS = 500;
+    private static final long STALE_SYNC_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final long DEFAULT_SNAPSHOT_CHECK_MILLIS = 2000;
+    static final long DEFAULT_ANTI_ENTROPY_MILLIS = 30000;
+    private static final int ANTI_ENTROPY_BATCH = 16; // workers whose data version is checked per period
+    private static final int MAX_SNAPSHOT_BYTES = 1000 * 1024; // below the default jute.maxbuffer (1 MB)
+    // metrics (see Metrics)
+    static final String REFRESH_DURATION_METRIC = "registry.refresh.duration";
+    static final String REFRESH_MEMBERS_METRIC = "registry.refresh.members";
+    static final String REFRESH_READS_METRIC = "registry.refresh.reads";
+    static final String WATCH_LAG_METRIC = "registry.watch.lag";
+    static final String UPDATES_METRIC = "registry.updates";
+    static final String SNAPSHOT_PUBLISHES_METRIC = "registry.snapshot.publishes";
+    static final String SNAPSHOT_FALLBACKS_METRIC = "registry.snapshot.fallbacks";
+    static final String REFRESH_SKIPPED_METRIC = "registry.refresh.skipped";
+    static final String ANTI_ENTROPY_REPAIRS_METRIC = "registry.antientropy.repairs";
+    private volatile ZooKeeper zooKeeper; // replaced by a new one once the session has expired
+    private final String rootPath; // the registry's root znode (ZNODE_ROOT, unless it's a service's registry)
+    private final EventDispatcher dispatcher; // runs the refreshes off the Zookeeper event thread
+    private volatile boolean ownsDispatcher = false; // whether the dispatcher was created by (and shut down with) it
+    private final String snapshotPath; // znode of the address book's snapshot (see startPublishingSnapshot())
 
-    private String currentZnode; // name of the latest znode registered with the registry
-                                      // (useful to keep internal record of a created znode name)
-    private List<String> allServiceAddresses = null;
+    // znodes registered with the registry, in registration order, along with their data
+    // (to unregister them, or to register them again on a new session)
+    private final Map<String, byte[]> registeredZnodes = new LinkedHashMap<>();
+    // latest asynchronous registration (in progress until the future is done, see registerNodesAsync())
+    private CompletableFuture<List<String>> pendingRegistration;
+    // registrations (and removals) rejected by a read-only server, issued again once the quorum is restored
+    // (see ZKConnection.forDiscovery())
+    private final List<Runnable> writesAwaitingQuorum = new ArrayList<>();
+    // guards registeredZnodes, pendingRegistration and writesAwaitingQuorum
+    private final Object registrationLock = new Object();
+    // latest (immutable) snapshot of the registered services, a new one is published on every change
+    // (null until the services are fetched for the first time, or loaded from the local copy)
+    private volatile AddressBook addressBook = null;
+    private final AddressBookFile addressBookFile; // local copy of the address book (null if not used)
+    private final List<AddressBookListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long lastStaleSyncNanos = System.nanoTime();
+
+    // ids of the latest started and the latest cached address fetch
+    // (only accessed on the Zookeeper event thread)
+    private long lastFetchId = 0;
+    private long lastCachedFetchId = 0;
+    private final List<AddressFetch> activeFetches = new ArrayList<>();
+    // changes notified by the persistent watch, published together once the reads issued for them are done
+    // (a null endpoint is a removed worker, only accessed on the Zookeeper event thread)
+    private final Map<String, Endpoint> pendingUpdates = new HashMap<>();
+    private int pendingUpdateReads = 0;
+
+    // whether a persistent recursive watch on the root is used instead of one-shot watches on its children
+    private final boolean persistentWatchRequested;
+    private volatile boolean persistentWatch = false;
+    private volatile boolean rootReady = false; // whether the root znode (and its persistent watch) is set up
+    private boolean disconnected = false;
+    private volatile boolean childWatchArmed = false; // whether a one-shot watch is set on the root's children
+    // data version (Stat.mzxid) each worker's znode was read at (to find the changes missed by the watches)
+    private final Map<String, Long> workerZxids = new ConcurrentHashMap<>();
+    private int antiEntropyCursor = 0; // next worker whose data version is checked (only accessed by the check)
+    private long watchEventNanos = 0; // when the oldest change not yet reflected by the cache was notified
+                                      // (0 if none, only accessed on the Zookeeper event thread)
+    private volatile boolean closed = false;
+
+    // whether the address book is read from the snapshot published by the leader (see withSnapshotReads())
+    private final boolean snapshotReads;
+    private volatile boolean publishingSnapshot = false;
+    private final Future<?> consistencyCheck; // periodic check of the address book (see checkConsistency())
+    private int laggingRootVersion = -1; // root's children version the snapshot was found behind (-1 if up to date)
+    // version of the snapshot znode and of the address book written by the latest publish (-1 if unknown)
+    // (only accessed by the publishing task)
+    private int snapshotZnodeVersion = -1;
+    private int publishedVersion = -1;
 
     // Service registry needs:
     // Zookeeper connection object and
     // Class loader of the client's class to locate the log4j.properties files for clients.
     public ServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader) {
+        this(zooKeeper, classLoader, false);
+    }
+
+    // 'persistentWatch' - use a single persistent recursive watch (ZooKeeper 3.6+) on the registry root
+    // to get an event for each registered/unregistered worker, instead of re-registering a one-shot watch
+    // (and re-listing all the workers) on every change.
+    // Falls back to the one-shot watches if the server doesn't support persistent watches.
+    public ServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader, boolean persistentWatch) {
+        this(zooKeeper, classLoader, persistentWatch, new EventDispatcher("service-registry", 1,
+                                                        DEFAULT_DEBOUNCE_MILLIS, DEFAULT_MAX_STALENESS_MILLIS));
+        ownsDispatcher = true;
+    }
+
+    // 'dispatcher' - runs the refreshes triggered by the watches (a burst of changes to the registered workers
+    // is collapsed into a single refresh, as configured by the dispatcher's debounce window and max staleness)
+    public ServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader, boolean persistentWatch,
+                           EventDispatcher dispatcher) {
+        this(zooKeeper, classLoader, persistentWatch, dispatcher, null);
+    }
+
+    // 'addressBookFile' - path of a local copy of the address book (null to not use one).
+    // The local copy is written on every change. On startup, the addresses are served from it right away
+    // (marked as stale) until the registry has synced with Zookeeper, even if Zookeeper isn't reachable.
+    public ServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader, boolean persistentWatch,
+                           EventDispatcher dispatcher, Path addressBookFile) {
+        this(zooKeeper, classLoader, ZNODE_ROOT, persistentWatch, dispatcher, addressBookFile);
+    }
+
+    // registry rooted at the given path (e.g. a single service's registry of a MultiServiceRegistry)
+    // 'classLoader' - to configure the logger (null if it's already configured)
+    ServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader, String rootPath, boolean persistentWatch,
+                    EventDispatcher dispatcher, Path addressBookFile) {
+        this(zooKeeper, classLoader, rootPath, persistentWatch, dispatcher, addressBookFile, false);
+    }
+
+    // registry of a client which only looks the services up: rather than watching (and reading) each registered
+    // worker, it watches the snapshot of the address book published by the cluster's leader (see
+    // startPublishingSnapshot()), i.e. a change costs a single read per client, whatever the number of workers.
+    // The root is checked (with a single exists()) every DEFAULT_SNAPSHOT_CHECK_MILLIS: if the snapshot has been
+    // behind the root for a whole period (e.g. there is no leader to publish it), the workers are read directly.
+    public static ServiceRegistry withSnapshotReads(ZooKeeper zooKeeper, ClassLoader classLoader,
+                                                    EventDispatcher dispatcher) {
+        return new ServiceRegistry(zooKeeper, classLoader, ZNODE_ROOT, false, dispatcher, null, true);
+    }
+
+    private ServiceRegistry(ZooKeeper zooKeeper, ClassLoader classLoader, String rootPath, boolean persistentWatch,
+                            EventDispatcher dispatcher, Path addressBookFile, boolean snapshotReads) {
 
         // initialise logger object
-        PropertyConfigurator.configure(classLoader.getResource("registry.log4j.properties"));
+        if (classLoader != null) {
+            PropertyConfigurator.configure(classLoader.getResource("registry.log4j.properties"));
+        }
 
         this.zooKeeper = zooKeeper;
+        this.rootPath = rootPath;
+        this.dispatcher = dispatcher;
+        this.persistentWatchRequested = persistentWatch && !snapshotReads;
+        this.snapshotReads = snapshotReads;
+        this.snapshotPath = SNAPSHOT_ROOT + rootPath.substring(ZNODE_ROOT.length());
+        this.addressBookFile = addressBookFile != null ? new AddressBookFile(addressBookFile) : null;
+        if (this.addressBookFile != null) {
+            this.addressBook = this.addressBookFile.read();
+        }
+
         try {
             setupRootZNode();
-        } catch (InterruptedException | KeeperException e) {
+        } catch (KeeperException e) {
+            if (addressBook == null) {
+                throw new RuntimeException(e);
+            }
+            logger.warn("Zookeeper is not available (" + e.getMessage() + "), serving the local address book");
+        } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
+
+        if (addressBook != null) {
+            scheduleRefresh(); // replace the local copy with the addresses from Zookeeper
+        }
+        consistencyCheck = dispatcher.scheduleAtFixedRate(this::checkConsistency, snapshotReads
+                                                          ? DEFAULT_SNAPSHOT_CHECK_MILLIS : DEFAULT_ANTI_ENTROPY_MILLIS);
     }
 
     private void setupRootZNode() throws InterruptedException, KeeperException {
-        if (zooKeeper.exists(ZNODE_ROOT, false) == null) {
-            zooKeeper.create(ZNODE_ROOT, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            logger.info("Root znode created for the service registry!");
+        if (zooKeeper.exists(rootPath, false) == null) {
+            try {
+                zooKeeper.create(rootPath, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                logger.info("Root znode created for the service registry!");
+            } catch (KeeperException.NodeExistsException e) {
+                // created by another client in the meantime
+            }
+        }
+        if (persistentWatchRequested) {
+            persistentWatch = setupPersistentWatch();
+        }
+        rootReady = true;
+    }
+
+    // returns - false if the server doesn't support persistent watches
+    private boolean setupPersistentWatch() throws InterruptedException, KeeperException {
+        try {
+            zooKeeper.addWatch(rootPath, this, AddWatchMode.PERSISTENT_RECURSIVE);
+            logger.info("Persistent recursive watch added on the service registry root");
+            return true;
+        } catch (KeeperException.UnimplementedException e) {
+            // older servers (before 3.6) don't support persistent watches
+            logger.warn("Persistent watches are not supported by the server, using one-shot watches instead");
+            return false;
         }
     }
 
     // method to register a worker node (i.e a server)'s host name (i.e. IP address)
     // with the service registry
+    // Note: the address is stored in the plain string format (readable by the older versions of the registry)
     public void registerNode(@NotNull String hostName) {
+        registerNode(hostName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // method to register a worker node's endpoint (i.e. its address along with its weight, zone, metadata etc.)
+    // with the service registry
+    public void registerNode(@NotNull Endpoint endpoint) {
+        registerNode(EndpointCodec.encode(endpoint));
+    }
+
+    private void registerNode(byte[] data) {
+        synchronized (registrationLock) {
+            try {
+                if (!registeredZnodes.isEmpty() || isRegistrationPending()) {
+                    logger.warn("Already registered to the service registry");
+                    return;
+                }
+                String znode = zooKeeper.create(rootPath + "/" + NODE_PREFIX, data,
+                                                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+                registeredZnodes.put(znode, data);
+                logger.info("New znode created: " + znode);
+            } catch (KeeperException.NotReadOnlyException e) {
+                awaitQuorum(() -> registerNode(data));
+            } catch (InterruptedException | KeeperException e) {
+                logger.error("Failed to register the node", e);
+            }
+        }
+    }
+
+    // register a set of endpoints (e.g. all the ports and protocols of a process) in a single transaction:
+    // either all of them or none is registered, and the registry's watchers get all of them at once.
+    // Unlike registerNode(), it may be called again to register more endpoints (with the same session).
+    // returns - the paths of the registered znodes (in the order of the given endpoints)
+    // throws - NotReadOnlyException if connected to a read-only server (registerNodesAsync() waits for the quorum)
+    public List<String> registerNodes(@NotNull Collection<Endpoint> endpoints)
+            throws KeeperException, InterruptedException {
+        List<byte[]> data = encodeEndpoints(endpoints);
+        synchronized (registrationLock) {
+            return createZnodes(data);
+        }
+    }
+
+    // non-blocking version of registerNode(hostName)
+    public CompletableFuture<String> registerNodeAsync(@NotNull String hostName) {
+        return registerNodeAsync(hostName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // non-blocking version of registerNode(endpoint)
+    // returns - a future completed with the path of the registered znode (the first already registered one, if any),
+    //           or failed with the KeeperException of the registration.
+    //           The future is completed off the Zookeeper event thread (see ZkFutures.offEventThread())
+    public CompletableFuture<String> registerNodeAsync(@NotNull Endpoint endpoint) {
+        return registerNodeAsync(EndpointCodec.encode(endpoint));
+    }
+
+    private CompletableFuture<String> registerNodeAsync(byte[] data) {
+        synchronized (registrationLock) {
+            if (!registeredZnodes.isEmpty()) {
+                return CompletableFuture.completedFuture(registeredZnodes.keySet().iterator().next());
+            }
+            CompletableFuture<List<String>> registration = isRegistrationPending() ? pendingRegistration
+                                                                                   : registerAsync(List.of(data));
+            return registration.thenApply(znodes -> znodes.get(0));
+        }
+    }
+
+    // non-blocking version of registerNodes(endpoints)
+    // returns - a future completed with the paths of the registered znodes, or failed with the KeeperException
+    //           of the transaction (completed off the Zookeeper event thread)
+    public CompletableFuture<List<String>> registerNodesAsync(@NotNull Collection<Endpoint> endpoints) {
+        List<byte[]> data = encodeEndpoints(endpoints);
+        synchronized (registrationLock) {
+            return registerAsync(data);
+        }
+    }
+
+    // start a registration once the pending one (if any) is done, so that the pending registration is always
+    // the latest one (see unRegisterNodeAsync())
+    // Note: must be called with the registrationLock held
+    private CompletableFuture<List<String>> registerAsync(List<byte[]> data) {
+        CompletableFuture<List<String>> previous = pendingRegistration;
+        if (previous == null || previous.isDone()) {
+            pendingRegistration = createZnodesAsync(data);
+        } else {
+            pendingRegistration = previous.handle((znodes, e) -> null).thenCompose(done -> {
+                synchronized (registrationLock) {
+                    return createZnodesAsync(data);
+                }
+            });
+        }
+        return pendingRegistration;
+    }
+
+    private boolean isRegistrationPending() {
+        return pendingRegistration != null && !pendingRegistration.isDone();
+    }
+
+    // create the znodes of the given data in a single transaction
+    // Note: must be called with the registrationLock held
+    private List<String> createZnodes(List<byte[]> data) throws KeeperException, InterruptedException {
+        if (data.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long startNanos = System.nanoTime();
         try {
-            if (this.currentZnode != null) {
-                System.out.println("Already registered to service registry");
-                return;
+            List<OpResult> results = zooKeeper.multi(createOps(data));
+            Metrics.recordOperation(Metrics.ZkOperation.MULTI, rootPath, startNanos, KeeperException.Code.OK.intValue());
+            return addRegisteredZnodes(data, results);
+        } catch (KeeperException e) {
+            Metrics.recordOperation(Metrics.ZkOperation.MULTI, rootPath, startNanos, e.code().intValue());
+            throw e;
+        }
+    }
+
+    private CompletableFuture<List<String>> createZnodesAsync(List<byte[]> data) {
+        if (data.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        CompletableFuture<List<String>> created = new CompletableFuture<>();
+        createZnodesAsync(data, created);
+        return ZkFutures.offEventThread(created);
+    }
+
+    private void createZnodesAsync(List<byte[]> data, CompletableFuture<List<String>> created) {
+        long startNanos = System.nanoTime();
+        zooKeeper.multi(createOps(data), (rc, path, ctx, results) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.MULTI, rootPath, startNanos, rc);
+            List<String> znodes = null;
+            synchronized (registrationLock) {
+                if (rc == KeeperException.Code.NOTREADONLY.intValue()) {
+                    awaitQuorum(() -> createZnodesAsync(data, created));
+                    return;
+                }
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    znodes = addRegisteredZnodes(data, results);
+                }
             }
-            this.currentZnode = zooKeeper.create(ZNODE_ROOT + "/n_", hostName.getBytes(),
-                                                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-            logger.info("New znode created: " + currentZnode);
-            System.out.println("Node registered successfully!");
-        } catch (InterruptedException | KeeperException e) {
-            e.printStackTrace();
+            ZkFutures.complete(created, rc, rootPath, znodes);
+        }, null);
+    }
+
+    private List<Op> createOps(List<byte[]> data) {
+        List<Op> ops = new ArrayList<>(data.size());
+        for (byte[] znodeData : data) {
+            ops.add(Op.create(rootPath + "/" + NODE_PREFIX, znodeData, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                              CreateMode.EPHEMERAL_SEQUENTIAL));
         }
+        return ops;
     }
 
-    // method to unregister a worker node from the service registry
+    // keep a record of the znodes created by a (successful) transaction, returns their paths
+    // Note: must be called with the registrationLock held
+    private List<String> addRegisteredZnodes(List<byte[]> data, List<OpResult> results) {
+        List<String> znodes = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            String znode = ((OpResult.CreateResult) results.get(i)).getPath();
+            registeredZnodes.put(znode, data.get(i));
+            znodes.add(znode);
+        }
+        logger.info("New znodes created: " + znodes);
+        return znodes;
+    }
+
+    private static List<byte[]> encodeEndpoints(Collection<Endpoint> endpoints) {
+        List<byte[]> data = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            data.add(EndpointCodec.encode(endpoint));
+        }
+        return data;
+    }
+
+    // returns the paths of the znodes registered with the registry (in registration order)
+    public List<String> getRegisteredZnodes() {
+        synchronized (registrationLock) {
+            return new ArrayList<>(registeredZnodes.keySet());
+        }
+    }
+
+    // method to unregister a worker node from the service registry, i.e. all of its registered znodes
     // (useful for "leaders" to unregister themselves from the list of worker nodes)
     public void unRegisterNode()
     {
+        synchronized (registrationLock) {
+            try {
+                if (!registeredZnodes.isEmpty()) {
+                    deleteZnodes(new ArrayList<>(registeredZnodes.keySet()));
+                    logger.info("Node unregistered from the registry");
+                }
+            } catch (KeeperException.NotReadOnlyException e) {
+                awaitQuorum(this::unRegisterNode);
+            } catch (InterruptedException | KeeperException e) {
+                logger.error("Failed to unregister the node", e);
+            }
+        }
+    }
+
+    // unregister the given znodes (as returned by registerNodes()) in a single transaction
+    // (the znodes which have already been removed, e.g. along with an expired session, are skipped)
+    // throws - NotReadOnlyException if connected to a read-only server (unRegisterNodesAsync() waits for the quorum)
+    public void unRegisterNodes(@NotNull Collection<String> znodes) throws KeeperException, InterruptedException {
+        synchronized (registrationLock) {
+            deleteZnodes(new ArrayList<>(znodes));
+        }
+    }
+
+    // non-blocking version of unRegisterNode()
+    // returns - a future completed once the registered znodes (if any) are removed, or failed with the
+    //           KeeperException of the removal (completed off the Zookeeper event thread)
+    public CompletableFuture<Void> unRegisterNodeAsync() {
+        CompletableFuture<List<String>> pending;
+        List<String> znodes;
+        synchronized (registrationLock) {
+            pending = isRegistrationPending() ? pendingRegistration : null;
+            znodes = new ArrayList<>(registeredZnodes.keySet());
+        }
+        if (pending != null) {
+            // unregister once the registration in progress is done (whether it succeeded or not)
+            return pending.handle((registered, e) -> null).thenCompose(done -> unRegisterNodeAsync());
+        }
+        return unRegisterNodesAsync(znodes);
+    }
+
+    // non-blocking version of unRegisterNodes(znodes)
+    public CompletableFuture<Void> unRegisterNodesAsync(@NotNull Collection<String> znodes) {
+        CompletableFuture<Void> unregistered = new CompletableFuture<>();
+        deleteZnodesAsync(new ArrayList<>(znodes), unregistered);
+        return ZkFutures.offEventThread(unregistered);
+    }
+
+    // delete the given znodes in a single transaction, skipping the ones which don't exist anymore
+    // Note: must be called with the registrationLock held
+    private void deleteZnodes(List<String> znodes) throws KeeperException, InterruptedException {
+        List<String> remaining = new ArrayList<>(znodes);
+        while (!remaining.isEmpty()) {
+            long startNanos = System.nanoTime();
+            try {
+                zooKeeper.multi(deleteOps(remaining));
+                Metrics.recordOperation(Metrics.ZkOperation.MULTI, rootPath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                break;
+            } catch (KeeperException.NoNodeException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.MULTI, rootPath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                remaining.remove(missingZnode(remaining, e.getResults())); // retry without it
+            } catch (KeeperException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.MULTI, rootPath, startNanos, e.code().intValue());
+                throw e;
+            }
+        }
+        removeRegisteredZnodes(znodes);
+    }
+
+    private void deleteZnodesAsync(List<String> remaining, CompletableFuture<Void> deleted) {
+        if (remaining.isEmpty()) {
+            deleted.complete(null);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        zooKeeper.multi(deleteOps(remaining), (rc, path, ctx, results) -> {
+            boolean missing = rc == KeeperException.Code.NONODE.intValue();
+            Metrics.recordOperation(Metrics.ZkOperation.MULTI, rootPath, startNanos,
+                                    missing ? KeeperException.Code.OK.intValue() : rc);
+            if (missing) {
+                List<String> retried = new ArrayList<>(remaining);
+                retried.remove(missingZnode(remaining, results));
+                deleteZnodesAsync(retried, deleted);  // retry without it
+                return;
+            }
+            if (rc == KeeperException.Code.NOTREADONLY.intValue()) {
+                synchronized (registrationLock) {
+                    awaitQuorum(() -> deleteZnodesAsync(remaining, deleted));
+                }
+                return;
+            }
+            if (rc == KeeperException.Code.OK.intValue()) {
+                synchronized (registrationLock) {
+                    removeRegisteredZnodes(remaining);
+                }
+            }
+            ZkFutures.complete(deleted, rc, rootPath, null);
+        }, null);
+    }
+
+    private static List<Op> deleteOps(List<String> znodes) {
+        List<Op> ops = new ArrayList<>(znodes.size());
+        for (String znode : znodes) {
+            ops.add(Op.delete(znode, -1));
+        }
+        return ops;
+    }
+
+    // returns the znode whose deletion has failed a transaction with NONODE
+    // (the results of a failed transaction report the error of the failed operation)
+    private static String missingZnode(List<String> znodes, List<OpResult> results) {
+        if (results != null) {
+            for (int i = 0; i < results.size() && i < znodes.size(); i++) {
+                if (results.get(i) instanceof OpResult.ErrorResult error
+                    && error.getErr() == KeeperException.Code.NONODE.intValue()) {
+                    return znodes.get(i);
+                }
+            }
+        }
+        return znodes.get(0); // not reported, retry with the others rather than forever
+    }
+
+    // Note: must be called with the registrationLock held
+    private void removeRegisteredZnodes(Collection<String> znodes) {
+        registeredZnodes.keySet().removeAll(znodes);
+        logger.info("Znodes " + znodes + " have been removed from the registry!");
+    }
+
+    // restore the registry on a new session (see ZKConnection): the registered znodes (if any) were removed
+    // along with the expired session, hence they are registered again (under new names, in a single transaction),
+    // and the watches are set up again by resyncing the addresses
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zooKeeper = zooKeeper;
+        this.rootReady = false;
+        this.childWatchArmed = false; // the watches are gone along with the expired session
+        synchronized (registrationLock) {
+            if (!registeredZnodes.isEmpty()) {
+                logger.info("Session expired, registering " + registeredZnodes.keySet() + " again");
+                List<byte[]> data = new ArrayList<>(registeredZnodes.values());
+                registeredZnodes.clear();
+                registerAgain(data);
+            }
+        }
+        scheduleRefresh();
+    }
+
+    // Note: must be called with the registrationLock held
+    private void registerAgain(List<byte[]> data) {
+        try {
+            createZnodes(data);
+        } catch (KeeperException.NotReadOnlyException e) {
+            awaitQuorum(() -> {
+                synchronized (registrationLock) {
+                    registerAgain(data);
+                }
+            });
+        } catch (KeeperException e) {
+            logger.warn("Failed to register the znodes again: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // defer a write rejected by a read-only server until the quorum is restored (see onReadWriteRestored()),
+    // unless the client has switched to a server with quorum in the meantime
+    // Note: must be called with the registrationLock held
+    private void awaitQuorum(Runnable write) {
+        if (zooKeeper.getState() == ZooKeeper.States.CONNECTED) {
+            dispatcher.execute(write);
+            return;
+        }
+        logger.info("Connected to a read-only server, the registration waits for the quorum to be restored");
+        writesAwaitingQuorum.add(write);
+    }
+
+    // issue the writes which have been rejected by a read-only server (see ZKConnection.forDiscovery())
+    @Override
+    public void onReadWriteRestored(ZooKeeper zooKeeper) {
+        List<Runnable> writes;
+        synchronized (registrationLock) {
+            writes = new ArrayList<>(writesAwaitingQuorum);
+            writesAwaitingQuorum.clear();
+        }
+        for (Runnable write : writes) {
+            write.run();
+        }
+        scheduleRefresh(); // the watches have been set again on the new server, resync what they may have missed
+    }
+
+    // publish a snapshot of the address book on every change (i.e. by the cluster's leader), so that the clients
+    // reading the snapshot (see withSnapshotReads()) don't each read every worker.
+    // While publishing, the workers are watched and read directly (rather than through the snapshot)
+    public void startPublishingSnapshot() {
+        publishingSnapshot = true;
+        schedulePublishSnapshot();
+    }
+
+    // stop publishing the snapshot (e.g. once the leader has become a follower)
+    public void stopPublishingSnapshot() {
+        if (publishingSnapshot) {
+            publishingSnapshot = false;
+            if (snapshotReads) {
+                scheduleRefresh(); // read (and watch) the snapshot again
+            }
+        }
+    }
+
+    // publish the snapshot on the dispatcher's thread, collapsing a burst of changes into a single write
+    private void schedulePublishSnapshot() {
+        if (publishingSnapshot && !closed) {
+            dispatcher.dispatch(snapshotPath, this::publishSnapshot);
+        }
+    }
+
+    // list the root (for the version the address book reflects) and write the address book to the snapshot znode
+    private void publishSnapshot() {
+        if (!publishingSnapshot || closed) {
+            return;
+        }
+        try {
+            if (!rootReady) {
+                setupRootZNode();
+            }
+            awaitRefresh(false);
+            AddressBook book = addressBook;
+            if (book != null && book.getVersion() >= 0 && book.getVersion() != publishedVersion) {
+                writeSnapshot(RegistrySnapshot.encode(book), book.getVersion());
+            }
+        } catch (KeeperException e) {
+            logger.warn("Failed to publish the snapshot of the address book: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // write the given snapshot (conditionally on the snapshot znode's version, so that a newer snapshot written
+    // by another leader in the meantime is never overwritten by an older one)
+    private void writeSnapshot(byte[] data, int version) throws KeeperException, InterruptedException {
+        if (data.length > MAX_SNAPSHOT_BYTES) {
+            logger.warn("The snapshot of the address book is too large (" + data.length
+                        + " bytes), the clients read the workers directly");
+            return;
+        }
+        while (true) {
+            if (snapshotZnodeVersion < 0) {
+                Stat stat = new Stat();
+                byte[] current;
+                try {
+                    current = zooKeeper.getData(snapshotPath, false, stat);
+                } catch (KeeperException.NoNodeException e) {
+                    if (createSnapshotZnode(data)) {
+                        break;
+                    }
+                    continue; // created by another leader in the meantime
+                }
+                snapshotZnodeVersion = stat.getVersion();
+                if (snapshotVersion(current) >= version) {
+                    publishedVersion = version; // already published (e.g. by a new leader)
+                    return;
+                }
+            }
+            long startNanos = System.nanoTime();
+            try {
+                Stat stat = zooKeeper.setData(snapshotPath, data, snapshotZnodeVersion);
+                Metrics.recordOperation(Metrics.ZkOperation.SET_DATA, snapshotPath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                snapshotZnodeVersion = stat.getVersion();
+                break;
+            } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.SET_DATA, snapshotPath, startNanos, e.code().intValue());
+                snapshotZnodeVersion = -1; // written (or removed) by another leader, read it again
+            }
+        }
+        publishedVersion = version;
+        Metrics.count(SNAPSHOT_PUBLISHES_METRIC);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Snapshot of the address book published, version " + version);
+        }
+    }
+
+    // returns - false if the snapshot znode has been created by another client in the meantime
+    private boolean createSnapshotZnode(byte[] data) throws KeeperException, InterruptedException {
+        // the parent (i.e. the snapshot of the top registry) is created first, for the snapshots of the services
+        for (int i = snapshotPath.indexOf('/', 1); i > 0; i = snapshotPath.indexOf('/', i + 1)) {
+            try {
+                zooKeeper.create(snapshotPath.substring(0, i), new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                 CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException e) {
+                // already created
+            }
+        }
+        try {
+            zooKeeper.create(snapshotPath, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            snapshotZnodeVersion = 0;
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            return false;
+        }
+    }
+
+    // returns the version of the address book in the given snapshot data (-1 if it's not a valid snapshot)
+    private static int snapshotVersion(byte[] data) {
+        try {
+            return RegistrySnapshot.version(data);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    // bound the staleness of the snapshot: the workers are read directly if the address book has been behind the
+    // root since the previous check (i.e. no new snapshot has been published for the changes, e.g. for lack of
+    // a leader). A snapshot more recent than the direct read replaces it later on, as usual.
+    private void checkSnapshot(AddressBook book) {
+        try {
+            Stat rootStat = rootStat();
+            if (rootStat == null || book.getVersion() >= rootStat.getCversion()) {
+                laggingRootVersion = -1;
+                return;
+            }
+            if (laggingRootVersion < 0 || book.getVersion() >= laggingRootVersion) {
+                laggingRootVersion = rootStat.getCversion(); // give the leader a period to publish it
+                return;
+            }
+            logger.warn("The snapshot of the address book is stale (version " + book.getVersion()
+                        + ", the registry root was at " + laggingRootVersion + "), reading the workers directly");
+            Metrics.count(SNAPSHOT_FALLBACKS_METRIC);
+            laggingRootVersion = -1;
+            awaitRefresh(false);
+        } catch (KeeperException e) {
+            logger.warn("Failed to check the snapshot of the address book: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // periodic check of the address book (if it has been read): the staleness of the snapshot, if the address book
+    // is read from it, or else the anti-entropy check of the workers read directly
+    private void checkConsistency() {
+        AddressBook book = addressBook;
+        if (closed || !rootReady || book == null || book.isStale()) {
+            return;
+        }
+        if (readsSnapshot()) {
+            checkSnapshot(book);
+        } else {
+            checkWorkers(book);
+        }
+    }
+
+    // anti-entropy: catch the changes whose watch events have been missed (e.g. along with a lost one-shot watch),
+    // and the changes to the workers' data (which the one-shot watches don't report), at a bounded cost per period:
+    // the root's children version is compared with the address book's (a single exists()), and the data version of
+    // a few workers in turn (ANTI_ENTROPY_BATCH exists()) with the one they were read at
+    private void checkWorkers(AddressBook book) {
         try {
-            if (currentZnode != null && zooKeeper.exists(currentZnode, false) != null) {
-                zooKeeper.delete(currentZnode, -1);
-                logger.info("Znode " + currentZnode + " has been removed from the registry!");
-                System.out.println("node unregistered from the registry!");
-                this.currentZnode = null;
+            Stat rootStat = rootStat();
+            if (rootStat != null && rootStat.getCversion() != book.getVersion()) {
+                scheduleRefresh(); // (collapsed with the refresh of a change being notified, if any)
+            }
+
+            Map<String, Endpoint> endpoints = book.getEndpointsByZnode();
+            workerZxids.keySet().retainAll(endpoints.keySet()); // forget the removed workers
+            List<String> workers = new ArrayList<>(endpoints.keySet());
+            for (int i = 0; i < Math.min(ANTI_ENTROPY_BATCH, workers.size()); i++) {
+                antiEntropyCursor = (antiEntropyCursor + 1) % workers.size();
+                String worker = workers.get(antiEntropyCursor);
+                Long readZxid = workerZxids.get(worker);
+                if (readZxid == null) {
+                    continue; // e.g. read from the local copy of the address book
+                }
+                long startNanos = System.nanoTime();
+                Stat stat = zooKeeper.exists(rootPath + "/" + worker, false);
+                Metrics.recordOperation(Metrics.ZkOperation.EXISTS, rootPath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                if (stat == null || stat.getMzxid() != readZxid) {
+                    logger.info("Missed a change to the worker " + worker + ", reading it again");
+                    Metrics.count(ANTI_ENTROPY_REPAIRS_METRIC);
+                    readWorker(worker);
+                }
             }
+        } catch (KeeperException e) {
+            logger.warn("Failed to check the address book: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // read (and update) a single worker in the address book, e.g. whose data has changed
+    private void readWorker(String worker) {
+        long startNanos = System.nanoTime();
+        zooKeeper.getData(rootPath + "/" + worker, false, (rc, path, ctx, data, stat) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.GET_DATA, path, startNanos,
+                                    rc == KeeperException.Code.NONODE.intValue()
+                                    ? KeeperException.Code.OK.intValue() : rc);
+            Map<String, Endpoint> update = new HashMap<>();
+            if (rc == KeeperException.Code.OK.intValue()) {
+                workerZxids.put(worker, stat.getMzxid());
+                update.put(worker, decodeEndpoint(worker, data));
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                update.put(worker, null);
+            } else {
+                return;
+            }
+            AddressBook currentBook = addressBook;
+            // a changed worker doesn't change the root's children version, unlike a removed one
+            applyUpdates(update, rc == KeeperException.Code.OK.intValue() && currentBook != null
+                                 ? currentBook.getVersion() : -1);
+        }, null);
+    }
+
+    private Stat rootStat() throws KeeperException, InterruptedException {
+        long startNanos = System.nanoTime();
+        try {
+            Stat stat = zooKeeper.exists(rootPath, false);
+            Metrics.recordOperation(Metrics.ZkOperation.EXISTS, rootPath, startNanos,
+                                    KeeperException.Code.OK.intValue());
+            return stat;
+        } catch (KeeperException e) {
+            Metrics.recordOperation(Metrics.ZkOperation.EXISTS, rootPath, startNanos, e.code().intValue());
+            throw e;
+        }
+    }
+
+    // get notified of the changes to the registered services (e.g. to feed a ConsistentHashRing).
+    // The listener is notified right away with the current address book, if it has been fetched (or loaded)
+    public void addListener(@NotNull AddressBookListener listener) {
+        listeners.add(listener);
+        AddressBook book = addressBook;
+        if (book != null) {
+            listener.onAddressBookChanged(book);
+        }
+    }
+
+    public void removeListener(@NotNull AddressBookListener listener) {
+        listeners.remove(listener);
+    }
+
+    // stop watching the registered workers (the last cached addresses are still returned)
+    // The watches (one-shot or persistent) are removed from the server as well, i.e. its watch count drops, unless
+    // the connection is lost (they're then only removed locally, and stay on the server until they fire or the
+    // session ends).
+    // Note: it neither unregisters the node nor shuts down a dispatcher given to the registry (which may be
+    //       shared), the registry's own dispatcher (see ServiceRegistry(zooKeeper, classLoader)) is shut down.
+    public void close() {
+        closed = true;
+        publishingSnapshot = false;
+        consistencyCheck.cancel(false);
+        removeWatches(rootPath);
+        if (snapshotReads) {
+            removeWatches(snapshotPath);
+        }
+        if (ownsDispatcher) {
+            dispatcher.shutdown();
+        }
+    }
+
+    private void removeWatches(String path) {
+        try {
+            try {
+                // a server keeps a single watch per session and path (removeWatches() of a given watcher only
+                // checks it), hence the watches of the other watchers of the path are removed as well: e.g. another
+                // registry of the same session and root sets its watch again (see process())
+                zooKeeper.removeAllWatches(path, WatcherType.Any, false);
+            } catch (KeeperException.ConnectionLossException e) {
+                zooKeeper.removeWatches(path, this, WatcherType.Any, true); // at least stop getting the events
+            }
+        } catch (KeeperException.NoWatcherException e) {
+            // nothing is watched (e.g. the addresses have never been fetched)
         } catch (InterruptedException | KeeperException e) {
-            e.printStackTrace();
+            logger.warn("Failed to remove the watches on " + path + ": " + e.getMessage());
+        }
+    }
+
+    // returns the latest cached (immutable) list of addresses.
+    // The list is read without any locking (it is only fetched, with a lock, if it hasn't been fetched yet),
+    // hence it can be called on every request without waiting for a refresh in progress
+    public List<String> getAllServiceAddresses() {
+        AddressBook book = getAddressBook();
+        return book != null ? book.getAddresses() : null;
+    }
+
+    // returns the latest cached (immutable) list of endpoints (in the same order as getAllServiceAddresses())
+    public List<Endpoint> getAllEndpoints() {
+        AddressBook book = getAddressBook();
+        return book != null ? book.getEndpoints() : null;
+    }
+
+    // returns the latest cached snapshot of the registered services (fetching it if it hasn't been fetched yet)
+    // Note: a stale (i.e. local) address book is returned as is, while it is being synced in the background
+    public AddressBook getAddressBook() {
+        AddressBook book = addressBook;
+        if (book != null && book.isStale()) {
+            // retry to sync (at most once a second) if Zookeeper was not available
+            long now = System.nanoTime();
+            if (now - lastStaleSyncNanos > STALE_SYNC_RETRY_NANOS) {
+                lastStaleSyncNanos = now;
+                scheduleRefresh();
+            }
+        }
+        if (book == null) {
+            synchronized (this) {
+                if (addressBook == null) {
+                    try {
+                        updateAddresses();
+                    } catch ( InterruptedException | KeeperException e) {
+                        logger.error("Failed to fetch the service addresses", e);
+                    }
+                }
+                book = addressBook;
+            }
         }
+        return book;
+    }
+
+    // update (and cache) list of addresses for all active registered services and wait for the update to finish
+    // Note: the reads are completed on the Zookeeper event thread, hence this method must NOT be called from
+    //       within a watcher or a callback (use refreshAddresses() there instead, or dispatch it on an EventDispatcher)
+    public void updateAddresses() throws InterruptedException, KeeperException {
+        awaitRefresh(readsSnapshot());
+    }
+
+    private void awaitRefresh(boolean fromSnapshot) throws InterruptedException, KeeperException {
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicInteger resultCode = new AtomicInteger();
+        refresh(fromSnapshot, (rc, path, ctx) -> {
+            resultCode.set(rc);
+            finished.countDown();
+        });
+        finished.await();
+
+        KeeperException.Code code = KeeperException.Code.get(resultCode.get());
+        if (code != KeeperException.Code.OK) {
+            throw KeeperException.create(code, rootPath);
+        }
+    }
+
+    // non-blocking version of updateAddresses()
+    // returns - a future completed with the updated address book, or failed with the KeeperException of the update
+    //           (completed off the Zookeeper event thread)
+    public CompletableFuture<AddressBook> updateAddressesAsync() {
+        CompletableFuture<AddressBook> updated = new CompletableFuture<>();
+        refreshAddresses((rc, path, ctx) -> ZkFutures.complete(updated, rc, rootPath, addressBook));
+        return ZkFutures.offEventThread(updated);
+    }
+
+    // refresh the cached list of addresses without blocking the calling thread.
+    // The root's children are listed first (which also registers for any change in them) and compared with the
+    // cached address book: getData() is then issued (all at once) only for the newly registered children while
+    // the removed ones are simply dropped, so a refresh only costs reads for the workers that have changed.
+    // (A registry reading the snapshot, see withSnapshotReads(), reads the snapshot instead.)
+    // 'onFinished' is an optional callback, called with the result code once the new list is cached
+    public void refreshAddresses(AsyncCallback.VoidCallback onFinished) {
+        refresh(readsSnapshot(), onFinished);
     }
-    public synchronized List<String> getAllServiceAddresses() {
-        if (allServiceAddresses == null) {
+
+    private void refresh(boolean fromSnapshot, AsyncCallback.VoidCallback onFinished) {
+        if (fromSnapshot) {
+            readSnapshot(onFinished);
+        } else {
+            listChildren(onFinished);
+        }
+    }
+
+    // whether the address book is currently read from the snapshot
+    // (the leader publishing it watches and reads the workers itself)
+    private boolean readsSnapshot() {
+        return snapshotReads && !publishingSnapshot;
+    }
+
+    // list the root's children, unless the root's children version proves that the address book is current
+    // (e.g. on a reconnection, or once elected as the leader), which only costs an exists() on the root
+    private void listChildren(AsyncCallback.VoidCallback onFinished) {
+        AddressBook book = addressBook;
+        // no need to watch the children if the root is already watched persistently
+        // (or if the snapshot is watched instead, in which case the root is only listed as a fallback)
+        boolean watchNeeded = !persistentWatch && !readsSnapshot();
+        if (book == null || book.isStale() || book.getVersion() < 0 || watchNeeded && !childWatchArmed) {
+            listChildren(watchNeeded, onFinished);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        zooKeeper.exists(rootPath, false, (rc, path, ctx, stat) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.EXISTS, rootPath, startNanos, rc);
+            if (rc == KeeperException.Code.OK.intValue() && stat.getCversion() == book.getVersion()
+                && addressBook == book) {
+                Metrics.count(REFRESH_SKIPPED_METRIC);
+                recordWatchLag(startNanos); // nothing has changed since the events notified so far
+                if (onFinished != null) {
+                    onFinished.processResult(rc, rootPath, null);
+                }
+                return;
+            }
+            listChildren(watchNeeded, onFinished);
+        }, null);
+    }
+
+    private void listChildren(boolean watch, AsyncCallback.VoidCallback onFinished) {
+        long startNanos = System.nanoTime();
+        zooKeeper.getChildren(rootPath, watch ? this : null, (rc, path, ctx, children, stat) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, rootPath, startNanos, rc);
+            childWatchArmed = watch && rc == KeeperException.Code.OK.intValue();
+            if (rc != KeeperException.Code.OK.intValue()) {
+                if (onFinished != null) {
+                    onFinished.processResult(rc, rootPath, null);
+                }
+                return;
+            }
+            // skip any other children of the root (e.g. the services' roots of a MultiServiceRegistry)
+            children.removeIf(child -> !child.startsWith(NODE_PREFIX));
+            new AddressFetch(++lastFetchId, startNanos, children, stat.getCversion(), onFinished).start();
+        }, null);
+    }
+
+    // read the snapshot of the address book (watching it for the next one), the workers are read directly
+    // if no valid snapshot has been published
+    private void readSnapshot(AsyncCallback.VoidCallback onFinished) {
+        long startNanos = System.nanoTime();
+        zooKeeper.getData(snapshotPath, this, (rc, path, ctx, data, stat) -> {
+            boolean missing = rc == KeeperException.Code.NONODE.intValue();
+            Metrics.recordOperation(Metrics.ZkOperation.GET_DATA, snapshotPath, startNanos,
+                                    missing ? KeeperException.Code.OK.intValue() : rc);
+            if (missing) {
+                // watch for the first snapshot (a getData() on a missing znode doesn't leave a watch)
+                zooKeeper.exists(snapshotPath, this, (existsRc, existsPath, existsCtx, existsStat) -> {
+                    if (existsRc == KeeperException.Code.OK.intValue()) {
+                        scheduleRefresh(); // published in the meantime
+                    }
+                }, null);
+                listChildren(onFinished);
+                return;
+            }
+            if (rc != KeeperException.Code.OK.intValue()) {
+                if (onFinished != null) {
+                    onFinished.processResult(rc, rootPath, null);
+                }
+                return;
+            }
+            AddressBook snapshot;
             try {
+                snapshot = RegistrySnapshot.decode(data);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Invalid snapshot of the address book " + snapshotPath + " (" + e.getMessage()
+                            + "), reading the workers directly");
+                listChildren(onFinished);
+                return;
+            }
+            cacheSnapshot(startNanos, snapshot);
+            recordRefresh(startNanos, snapshot.size(), 1, rc);
+            if (onFinished != null) {
+                onFinished.processResult(rc, rootPath, null);
+            }
+        }, null);
+    }
+
+    // refresh the addresses on the dispatcher's thread, collapsing a burst of change events into a single refresh
+    private void scheduleRefresh() {
+        if (closed) {
+            return;
+        }
+        dispatcher.dispatch(rootPath, () -> {
+            try {
+                if (!rootReady) {
+                    setupRootZNode();
+                }
                 updateAddresses();
-            } catch ( InterruptedException | KeeperException e) {
-                e.printStackTrace();
+            } catch (KeeperException e) {
+                logger.warn("Failed to refresh the service addresses: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    // cache the address book of the given children, unless a more recent refresh has already been cached.
+    // The address of each child is taken from the newly fetched ones or else from the current address book
+    // (children missing from both were deleted before their data could be read, hence they are skipped).
+    private void cacheAddresses(long fetchId, long fetchStartNanos, List<String> children,
+                                Map<String, Endpoint> fetchedEndpoints, int version) {
+        AddressBook currentBook = addressBook;
+        if (fetchId < lastCachedFetchId
+            || currentBook != null && !currentBook.isStale() && currentBook.getVersion() > version) {
+            return; // a more recent refresh (or snapshot) has been cached already
+        }
+        lastCachedFetchId = fetchId;
+        recordWatchLag(fetchStartNanos); // the fetch reflects all the changes notified before it started
+
+        // copy-on-write: the published address book is never modified, a new one is built instead
+        Map<String, Endpoint> currentEndpoints = currentBook != null && !currentBook.isStale()
+                                                 ? currentBook.getEndpointsByZnode() : Collections.emptyMap();
+        TreeMap<String, Endpoint> newEndpoints = new TreeMap<>(); // sorted by znode name (i.e. by registration order)
+        for (String child : children) {
+            Endpoint endpoint = fetchedEndpoints.get(child);
+            if (endpoint == null) {
+                endpoint = currentEndpoints.get(child);
             }
+            if (endpoint != null) {
+                newEndpoints.put(child, endpoint);
+            }
+        }
+        if (currentBook != null && !currentBook.isStale() && newEndpoints.equals(currentEndpoints)) {
+            updateVersion(currentBook, version); // nothing has changed
+            return;
+        }
+        publishAddressBook(new AddressBook(newEndpoints, false, version));
+    }
+
+    // cache the address book of a snapshot, unless the address book is more recent (e.g. read directly)
+    private void cacheSnapshot(long readStartNanos, AddressBook snapshot) {
+        AddressBook currentBook = addressBook;
+        if (currentBook != null && !currentBook.isStale() && currentBook.getVersion() > snapshot.getVersion()) {
+            return;
+        }
+        recordWatchLag(readStartNanos);
+        if (currentBook != null && !currentBook.isStale()
+            && snapshot.getEndpointsByZnode().equals(currentBook.getEndpointsByZnode())) {
+            updateVersion(currentBook, snapshot.getVersion());
+            return;
+        }
+        publishAddressBook(snapshot);
+    }
+
+    // replace the address book with the same one at the given version (no change is published to the listeners)
+    private void updateVersion(AddressBook currentBook, int version) {
+        if (version != currentBook.getVersion()) {
+            addressBook = new AddressBook(new TreeMap<>(currentBook.getEndpointsByZnode()), false, version);
+            schedulePublishSnapshot();
+        }
+    }
+
+    // update the address of a single worker in the address book (a null address removes the worker)
+    // Note: only called on the Zookeeper event thread (by the persistent watch)
+    // the replies to the reads issued for the watch events come after all the events of the same transaction
+    // (e.g. registerNodes()), hence the changes are published together once all the reads are done
+    private void updateReadDone() {
+        if (--pendingUpdateReads == 0) {
+            applyUpdates(pendingUpdates, -1); // the root hasn't been listed for the new version
+            pendingUpdates.clear();
+        }
+    }
+
+    // apply the given changes (a null endpoint for a removed worker) to the cached address book
+    // 'version' - children version of the root the new address book reflects (-1 if unknown)
+    private void applyUpdates(Map<String, Endpoint> updates, int version) {
+        recordWatchLag(System.nanoTime());
+        AddressBook currentBook = addressBook;
+        if (currentBook == null || currentBook.isStale()) {
+            return; // the addresses haven't been fetched yet (the first refresh will include these workers)
+        }
+        Map<String, Endpoint> currentEndpoints = currentBook.getEndpointsByZnode();
+        TreeMap<String, Endpoint> newEndpoints = new TreeMap<>(currentEndpoints);
+        for (Map.Entry<String, Endpoint> update : updates.entrySet()) {
+            if (update.getValue() == null) {
+                newEndpoints.remove(update.getKey());
+            } else {
+                newEndpoints.put(update.getKey(), update.getValue());
+            }
+        }
+        if (!newEndpoints.equals(currentEndpoints)) {
+            publishAddressBook(new AddressBook(newEndpoints, false, version));
+        }
+    }
+
+    private void publishAddressBook(AddressBook newBook) {
+        addressBook = newBook;
+        Metrics.count(UPDATES_METRIC);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Service address book updated, service addresses are: " + addressBook.getAddresses());
+        }
+
+        if (addressBookFile != null) {
+            // write the local copy on the dispatcher's thread (only the latest address book of a burst is written)
+            dispatcher.dispatch(addressBookFile.getPath().toString(), this::writeAddressBookFile);
+        }
+        if (!listeners.isEmpty()) {
+            dispatcher.dispatch(rootPath + "#listeners", this::notifyListeners);
+        }
+        schedulePublishSnapshot();
+    }
+
+    // record the lag of the oldest pending change (if it was notified before the given time, i.e. if the cache
+    // now reflects it)
+    private void recordWatchLag(long reflectedUntilNanos) {
+        if (watchEventNanos == 0 || watchEventNanos > reflectedUntilNanos) {
+            return;
+        }
+        long lagNanos = System.nanoTime() - watchEventNanos;
+        watchEventNanos = 0;
+        Metrics.record(WATCH_LAG_METRIC, lagNanos);
+
+        RegistryWatchLagEvent event = new RegistryWatchLagEvent();
+        if (event.shouldCommit()) {
+            event.rootPath = rootPath;
+            event.lag = lagNanos;
+            event.commit();
         }
-        return allServiceAddresses;
     }
 
-    // update (and cache) list of addresses for all active registered services
-    // Note: while doing so, this method also registers for any change in root's children (i.e. calling getChildren() on root)
-    public synchronized void updateAddresses() throws InterruptedException, KeeperException {
+    private void notifyListeners() {
+        AddressBook book = addressBook;
+        for (AddressBookListener listener : listeners) {
+            listener.onAddressBookChanged(book);
+        }
+    }
+
+    private void writeAddressBookFile() {
+        try {
+            addressBookFile.write(addressBook);
+        } catch (IOException e) {
+            logger.warn("Failed to write the local address book " + addressBookFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    private void recordRefresh(long startNanos, int members, int reads, int resultCode) {
+        long durationNanos = System.nanoTime() - startNanos;
+        Metrics.record(REFRESH_DURATION_METRIC, durationNanos);
+        Metrics.record(REFRESH_MEMBERS_METRIC, members);
+        Metrics.record(REFRESH_READS_METRIC, reads);
+
+        RegistryRefreshEvent event = new RegistryRefreshEvent();
+        if (event.shouldCommit()) {
+            event.rootPath = rootPath;
+            event.members = members;
+            event.reads = reads;
+            event.resultCode = resultCode;
+            event.elapsed = durationNanos;
+            event.commit();
+        }
+    }
+
+    // decode the data of a worker's znode, returns null (skipping the worker) if the data is corrupt
+    private static Endpoint decodeEndpoint(String child, byte[] data) {
+        try {
+            return EndpointCodec.decode(data);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Skipping registry znode " + child + " with invalid data: " + e.getMessage());
+            return null;
+        }
+    }
 
-        List<String> children = zooKeeper.getChildren(ZNODE_ROOT, this);
+    // a single (pipelined) read of the data of the newly registered children of the root.
+    // Note: all the callbacks of a fetch are executed on the (single) Zookeeper event thread,
+    //       hence its state doesn't need any synchronisation
+    private class AddressFetch implements AsyncCallback.DataCallback {
+        private final long id;
+        private final long startNanos; // when the refresh was started (i.e. the root was listed)
+        private final List<String> children; // all the current children of the root
+        private final int version; // children version of the root, as of its listing
+        private final Map<String, Endpoint> fetchedEndpoints = new HashMap<>();
+        private final AsyncCallback.VoidCallback onFinished;
+        private int pendingReads;
+        private int reads;
+        private long readsStartNanos;
+        private int resultCode = KeeperException.Code.OK.intValue();
 
-        // get address from each znode and store it in a list
-        ArrayList<String> addresses = new ArrayList<>(children.size());
-        String workerFullPath;
-        for (String node: children) {
-            workerFullPath = ZNODE_ROOT + "/" + node;
+        AddressFetch(long id, long startNanos, List<String> children, int version,
+                     AsyncCallback.VoidCallback onFinished) {
+            this.id = id;
+            this.startNanos = startNanos;
+            this.children = new ArrayList<>(children);
+            this.version = version;
+            this.onFinished = onFinished;
+        }
 
-            // to handle race condition where a znode is deleted between getChildren() method and getData() method calls,
-            // first check if it exists.
-            Stat stats = zooKeeper.exists(workerFullPath, false);
-            if (stats == null) {
-                continue;
+        void start() {
+            // only the children which are not in the address book yet need to be read
+            // (all the children are read if the address book is only a local copy)
+            AddressBook currentBook = addressBook;
+            List<String> newChildren = new ArrayList<>();
+            for (String child : children) {
+                if (currentBook == null || currentBook.isStale()
+                        || !currentBook.getEndpointsByZnode().containsKey(child)) {
+                    newChildren.add(child);
+                }
+            }
+
+            pendingReads = newChildren.size();
+            reads = pendingReads;
+            readsStartNanos = System.nanoTime();
+            if (pendingReads == 0) {
+                finish();
+                return;
+            }
+            activeFetches.add(this);
+            for (String child : newChildren) {
+                zooKeeper.getData(rootPath + "/" + child, false, this, child);
+            }
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            // a deleted znode is an expected outcome (not a failure) of the read
+            Metrics.recordOperation(Metrics.ZkOperation.GET_DATA, path, readsStartNanos,
+                                    rc == KeeperException.Code.NONODE.intValue()
+                                    ? KeeperException.Code.OK.intValue() : rc);
+            switch (KeeperException.Code.get(rc)) {
+                case OK:
+                    Endpoint endpoint = decodeEndpoint((String) ctx, data);
+                    if (endpoint != null) {
+                        fetchedEndpoints.put((String) ctx, endpoint);
+                        workerZxids.put((String) ctx, stat.getMzxid());
+                    }
+                    break;
+                case NONODE:
+                    // the znode was deleted after getChildren() was called, simply skip it
+                    break;
+                default:
+                    if (resultCode == KeeperException.Code.OK.intValue()) {
+                        resultCode = rc;
+                    }
+            }
+            if (--pendingReads == 0) {
+                finish();
+            }
+        }
+
+        // forget a child which has been removed while this fetch is in progress
+        void discard(String child) {
+            children.remove(child);
+            fetchedEndpoints.remove(child);
+        }
+
+        private void finish() {
+            activeFetches.remove(this);
+            if (resultCode == KeeperException.Code.OK.intValue()) {
+                cacheAddresses(id, startNanos, children, fetchedEndpoints, version);
+            }
+            recordRefresh(startNanos, children.size(), reads, resultCode);
+            if (onFinished != null) {
+                onFinished.processResult(resultCode, rootPath, null);
             }
-            byte[] data  = zooKeeper.getData(workerFullPath, false, stats);
-            String address = new String(data);
-            addresses.add(address);
         }
-        allServiceAddresses = Collections.unmodifiableList(addresses);
-        logger.info("Service address book updated!");
-        System.out.println("service addresses are: " + allServiceAddresses);
-        logger.info("");
     }
 
     @Override
     public void process(WatchedEvent watchedEvent) {
+        if (closed) {
+            return;
+        }
+        if (snapshotPath.equals(watchedEvent.getPath())) {
+            // a new snapshot has been published (or the snapshot has been created or removed)
+            markWatchEvent();
+            scheduleRefresh();
+            return;
+        }
         switch (watchedEvent.getType()) {
+            case None:
+                if (watchedEvent.getState() == Event.KeeperState.Disconnected) {
+                    disconnected = true;
+                } else if ((watchedEvent.getState() == Event.KeeperState.SyncConnected
+                            || watchedEvent.getState() == Event.KeeperState.ConnectedReadOnly) && disconnected) {
+                    disconnected = false;
+                    // persistent watches don't report the changes missed while disconnected (and a one-shot
+                    // watch is lost if a refresh has failed while disconnected), hence resync
+                    scheduleRefresh();
+                }
+                break;
+            case ChildWatchRemoved:
+                // e.g. removed by the server, or by the close() of another registry of the same session and root
+                childWatchArmed = false;
+                scheduleRefresh(); // sets it again
+                break;
+            case PersistentWatchRemoved:
+                rootReady = false; // the refresh adds it again (see setupRootZNode())
+                scheduleRefresh();
+                break;
             case NodeChildrenChanged:
-                try {
-                    updateAddresses(); // call updateAddresses() method on any changes to the worker (children) nodes
-                } catch (InterruptedException | KeeperException e) {
-                    e.printStackTrace();
+                childWatchArmed = false; // a one-shot watch
+                markWatchEvent();
+                scheduleRefresh(); // refresh the addresses on any changes to the worker (children) nodes
+                break;
+
+            // events of the persistent recursive watch (for each worker)
+            case NodeCreated:
+            case NodeDataChanged:
+                String createdChild = getChildName(watchedEvent.getPath());
+                if (createdChild != null) {
+                    markWatchEvent();
+                    long startNanos = System.nanoTime();
+                    pendingUpdateReads++;
+                    zooKeeper.getData(watchedEvent.getPath(), false, (rc, path, ctx, data, stat) -> {
+                        Metrics.recordOperation(Metrics.ZkOperation.GET_DATA, path, startNanos,
+                                                rc == KeeperException.Code.NONODE.intValue()
+                                                ? KeeperException.Code.OK.intValue() : rc);
+                        if (rc == KeeperException.Code.OK.intValue()) {
+                            workerZxids.put(createdChild, stat.getMzxid());
+                            pendingUpdates.put(createdChild, decodeEndpoint(createdChild, data));
+                        } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                            pendingUpdates.put(createdChild, null);
+                        }
+                        updateReadDone();
+                    }, null);
+                }
+                break;
+            case NodeDeleted:
+                String deletedChild = getChildName(watchedEvent.getPath());
+                if (deletedChild != null) {
+                    markWatchEvent();
+                    // a fetch which has listed the root before the worker was removed, must not add it back
+                    for (AddressFetch fetch : activeFetches) {
+                        fetch.discard(deletedChild);
+                    }
+                    pendingUpdates.put(deletedChild, null);
+                    if (pendingUpdateReads == 0) {
+                        // the reply of a sync comes after the events of the rest of the transaction (if any)
+                        pendingUpdateReads++;
+                        zooKeeper.sync(rootPath, (rc, path, ctx) -> updateReadDone(), null);
+                    }
                 }
+                break;
+        }
+    }
+
+    private void markWatchEvent() {
+        if (watchEventNanos == 0) {
+            watchEventNanos = System.nanoTime();
         }
     }
-}
 
+    // returns the name of the given znode if it is a registered worker (i.e. a direct child of the root),
+    // or else null
+    private String getChildName(String path) {
+        if (path == null || !path.startsWith(rootPath + "/")) {
+            return null;
+        }
+        String name = path.substring(rootPath.length() + 1);
+        return name.startsWith(NODE_PREFIX) && name.indexOf('/') < 0 ? name : null;
+    }
+}
@@ -0,0 +1,15 @@
+package zk.classes;
+
+// interface to define a (client-side) load balancing strategy,
+// used to select one of the services registered with the service registry (e.g. for every outbound request)
+// Note: the implementations are called concurrently by the request threads, hence they must be thread safe
+public interface ServiceSelector {
+
+    // returns - address of the selected service (or null if no service is available)
+    String select();
+
+    // called once the request sent to the selected service has finished
+    // (only needed by the strategies which keep track of the outstanding requests)
+    default void release(String address) {
+    }
+}
@@ -0,0 +1,7 @@
+package zk.classes;
+
+// interface to define callbacks on the election events of the shards of a ShardedCluster
+public interface ShardElectionCallBack {
+    void onShardLeader(int shard);
+    void onShardFollower(int shard);
+}
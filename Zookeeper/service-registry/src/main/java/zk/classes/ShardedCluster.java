@@ -0,0 +1,343 @@
+package zk.classes;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs a leader election per shard (e.g. 256 shards under /registry_cluster/shard-N) from a single process and
+ * session, so that the leader-only work of the shards is spread over the cluster's nodes.
+ * <p>
+ * Each shard is a FaultTolerantCluster (i.e. a queue of the nodes' ephemeral sequential znodes, led by the first
+ * one). A node joins the queue of every shard, and then registers itself as a member of the cluster
+ * (/registry_cluster/members). Every node computes the same owner of each shard from the members alone (i.e.
+ * without any other read or coordination): the shards pick the members in the order of their rendezvous hashes,
+ * skipping the members which own their share of the shards already (ceil(shards / members)). Hence the shards
+ * are spread evenly, and a member joining (or leaving) only moves about its share of the shards.
+ * <p>
+ * The leader of a shard it doesn't own hands it over to the next node, by re-joining its queue at the end (see
+ * FaultTolerantCluster.rejoinAtTail()), until the owner gets to the head of the queue. Since a member registers
+ * only once it's in the queue of every shard, a handed over shard always gets to its owner.
+ * A node elected as the leader of a shard owned by another member hands it over right away, without notifying the
+ * application (i.e. the nodes between the previous leader and the owner never lead it). A shard led by the node
+ * which it doesn't own anymore (i.e. the members have changed) is checked after a short delay, to collapse a burst
+ * of changes, and the application is notified that the node follows it before it's handed over.
+ */
+public class ShardedCluster implements Watcher, SessionListener {
+    private static final Logger logger = Logger.getLogger(ShardedCluster.class);
+    private static final String SHARD_PREFIX = "shard-";
+    private static final String MEMBERS = "members";
+    private static final String MEMBER_PREFIX = "m_";
+    private static final long BALANCE_DEBOUNCE_MILLIS = 500;
+    private static final long BALANCE_MAX_DELAY_MILLIS = 2000;
+    private static final long RETRY_MILLIS = 1000;
+    // metrics (see Metrics)
+    static final String HANDOFFS_METRIC = "election.shard.handoffs";
+
+    private final String rootPath;
+    private final String membersPath;
+    private final FaultTolerantCluster[] shards;
+    private final Set<Integer> ledShards = ConcurrentHashMap.newKeySet();
+    // shards whose role has been notified to the application (i.e. only the changes of role are notified from then on)
+    private final Set<Integer> notifiedShards = ConcurrentHashMap.newKeySet();
+    private final ShardElectionCallBack electionCallback;
+    private final EventDispatcher dispatcher; // runs the elections' callbacks
+    private final EventDispatcher balancer; // balances the leadership (debounced)
+    private volatile ZooKeeper zookeeper; // zookeeper client object (replaced once the session has expired)
+    private volatile String memberPath; // path of the node's member znode (null until it has joined)
+    private volatile List<String> members = Collections.emptyList(); // names of the live members (empty = unknown)
+    private volatile String[] owners; // owner of each shard, assigned to the live members (null if unknown)
+    private volatile boolean closed = false;
+
+    // Initialise a cluster of the given number of shards under the given root (created if missing)
+    public ShardedCluster(String clusterRootName, int shardCount, ZooKeeper zooKeeper,
+                          ShardElectionCallBack electionCallback) throws InterruptedException, KeeperException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + shardCount);
+        }
+        this.rootPath = clusterRootName.startsWith("/") ? clusterRootName : "/" + clusterRootName;
+        this.membersPath = rootPath + "/" + MEMBERS;
+        this.zookeeper = zooKeeper;
+        this.electionCallback = electionCallback;
+        this.dispatcher = new EventDispatcher("shard-election");
+        this.balancer = new EventDispatcher("shard-balancer", 1, BALANCE_DEBOUNCE_MILLIS, BALANCE_MAX_DELAY_MILLIS);
+
+        createIfMissing(rootPath);
+        createIfMissing(membersPath);
+        shards = new FaultTolerantCluster[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new FaultTolerantCluster(rootPath + "/" + SHARD_PREFIX + shard, zooKeeper,
+                                                     new ShardCallback(shard), dispatcher);
+        }
+    }
+
+    private void createIfMissing(String path) throws InterruptedException, KeeperException {
+        if (zookeeper.exists(path, false) != null) {
+            return;
+        }
+        try {
+            zookeeper.create(path, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException ex) {
+            // created by another node in the meantime
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // returns the shards currently led by this node
+    public Set<Integer> getLedShards() {
+        return Collections.unmodifiableSet(Set.copyOf(ledShards));
+    }
+
+    public boolean isLeader(int shard) {
+        return ledShards.contains(shard);
+    }
+
+    // join the election of every shard, and then register the node as a member of the cluster
+    // returns - a future completed with the path of the node's member znode (or failed with the KeeperException
+    //           of a failed join), off the Zookeeper event thread
+    public CompletableFuture<String> join() {
+        List<CompletableFuture<String>> joined = new ArrayList<>(shards.length);
+        for (FaultTolerantCluster shard : shards) {
+            joined.add(shard.addNewNodeAsync());
+        }
+        CompletableFuture<String> registered = new CompletableFuture<>();
+        CompletableFuture.allOf(joined.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> {
+            if (error != null) {
+                registered.completeExceptionally(error.getCause() != null ? error.getCause() : error);
+            } else {
+                registerMember(registered);
+            }
+        });
+        return ZkFutures.offEventThread(registered);
+    }
+
+    // register the node as a member once it's in the queue of every shard: the other nodes hand it the shards it
+    // owns from then on
+    private void registerMember(CompletableFuture<String> registered) {
+        long startNanos = System.nanoTime();
+        zookeeper.create(membersPath + "/" + MEMBER_PREFIX, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                         CreateMode.EPHEMERAL_SEQUENTIAL, (rc, path, ctx, name) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.CREATE, path, startNanos, rc);
+            if (rc == KeeperException.Code.OK.intValue()) {
+                logger.info("Joined the cluster " + rootPath + " as " + name);
+                memberPath = name;
+                watchMembers();
+            }
+            ZkFutures.complete(registered, rc, path, name);
+        }, null);
+    }
+
+    private void watchMembers() {
+        long startNanos = System.nanoTime();
+        zookeeper.getChildren(membersPath, this, (rc, path, ctx, children) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, path, startNanos, rc);
+            if (closed) {
+                return;
+            }
+            if (rc == KeeperException.Code.OK.intValue()) {
+                owners = children.isEmpty() ? null : assignShards(children, shards.length);
+                members = children;
+                requestBalance();
+            } else if (rc != KeeperException.Code.SESSIONEXPIRED.intValue()) {
+                logger.warn("Failed to list the members of " + rootPath + ": " + KeeperException.Code.get(rc));
+                dispatcher.schedule(this::watchMembers, RETRY_MILLIS);
+            }
+        }, null);
+    }
+
+    private void requestBalance() {
+        balancer.dispatch(rootPath, this::balance);
+    }
+
+    // hand the led shards owned by other members over to their next nodes
+    private void balance() {
+        int handedOver = 0;
+        for (int shard : new ArrayList<>(ledShards)) {
+            if (!isOwnedByOtherMember(shard) || !ledShards.remove(shard)) {
+                continue; // owned (or lost in the meantime)
+            }
+            handedOver++;
+            // the application stops leading the shard before its next node is elected
+            dispatcher.execute(() -> {
+                electionCallback.onShardFollower(shard);
+                handOver(shard);
+            });
+        }
+        if (handedOver > 0) {
+            logger.info("Handing " + handedOver + " shards of " + rootPath + " over to their owners");
+        }
+    }
+
+    // returns whether the shard is owned by another live member (false if the members are unknown, or if the node
+    // hasn't joined yet)
+    private boolean isOwnedByOtherMember(int shard) {
+        String member = memberPath;
+        String[] currentOwners = owners;
+        if (member == null || currentOwners == null) {
+            return false;
+        }
+        String self = member.substring(membersPath.length() + 1);
+        return members.contains(self) && !currentOwners[shard].equals(self);
+    }
+
+    private void handOver(int shard) {
+        if (closed) {
+            return;
+        }
+        Metrics.count(HANDOFFS_METRIC);
+        shards[shard].rejoinAtTail().exceptionally(error -> {
+            logger.warn("Failed to hand shard " + shard + " of " + rootPath + " over", error);
+            return null;
+        });
+    }
+
+    // returns the owner of each shard: the first member (in the order of their rendezvous hashes for the shard)
+    // which doesn't own its share of the shards yet
+    static String[] assignShards(List<String> members, int shardCount) {
+        String[] sorted = members.toArray(new String[0]);
+        Arrays.sort(sorted); // the same order on every node
+        int share = (shardCount + sorted.length - 1) / sorted.length;
+        int[] owned = new int[sorted.length];
+        long[] memberHashes = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            memberHashes[i] = ConsistentHashRing.hash(sorted[i]);
+        }
+        String[] owners = new String[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            int owner = -1;
+            long ownerScore = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                long score = rendezvousHash(memberHashes[i], shard);
+                if (owned[i] < share && (owner < 0 || Long.compareUnsigned(score, ownerScore) > 0)) {
+                    owner = i;
+                    ownerScore = score;
+                }
+            }
+            owned[owner]++;
+            owners[shard] = sorted[owner];
+        }
+        return owners;
+    }
+
+    // returns the rendezvous hash of a member (given its 64-bit hash, see ConsistentHashRing.hash()) for a shard
+    private static long rendezvousHash(long memberHash, int shard) {
+        return ConsistentHashRing.mix(memberHash ^ shard);
+    }
+
+    // leave the cluster: the application stops leading its shards (notified on the calling thread), the node's
+    // member znode and its znodes in the shards' queues are deleted (the next nodes take over), and the cluster's
+    // dispatchers are shut down
+    public void close() throws InterruptedException {
+        closed = true;
+        for (int shard : new ArrayList<>(ledShards)) {
+            if (ledShards.remove(shard)) {
+                electionCallback.onShardFollower(shard);
+            }
+        }
+        String member = memberPath;
+        memberPath = null;
+        if (member != null) {
+            try {
+                zookeeper.delete(member, -1);
+            } catch (KeeperException.NoNodeException ex) {
+                // removed along with an expired session
+            } catch (KeeperException ex) {
+                logger.warn("Failed to leave the members of " + rootPath + ": " + ex.getMessage());
+            }
+        }
+        for (FaultTolerantCluster shard : shards) {
+            shard.close();
+        }
+        balancer.shutdown();
+        dispatcher.shutdown();
+    }
+
+    // re-join all the shards and the members on a new session: the node's znodes were removed along with the
+    // expired session, hence it doesn't lead any shard anymore
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zookeeper = zooKeeper;
+        if (closed) {
+            return;
+        }
+        for (int shard : new ArrayList<>(ledShards)) {
+            if (ledShards.remove(shard)) {
+                dispatcher.dispatch(shardKey(shard), () -> electionCallback.onShardFollower(shard));
+            }
+        }
+        if (memberPath == null) {
+            return; // hasn't joined the cluster yet
+        }
+        memberPath = null;
+        for (FaultTolerantCluster shard : shards) {
+            shard.onSessionRecovered(zooKeeper);
+        }
+        // the shards re-join on the (single) election thread, hence before the node registers as a member again
+        dispatcher.execute(() -> registerMember(new CompletableFuture<>()));
+    }
+
+    @Override
+    public void onReadWriteRestored(ZooKeeper zooKeeper) {
+        for (FaultTolerantCluster shard : shards) {
+            shard.onReadWriteRestored(zooKeeper);
+        }
+    }
+
+    private String shardKey(int shard) {
+        return rootPath + "/" + SHARD_PREFIX + shard;
+    }
+
+    // Note: executed on the Zookeeper event thread
+    @Override
+    public void process(WatchedEvent event) {
+        if (closed) {
+            return;
+        }
+        if (event.getType() == Event.EventType.NodeChildrenChanged && membersPath.equals(event.getPath())) {
+            watchMembers();
+        }
+    }
+
+    // election callbacks of a shard, run on the election dispatcher's thread
+    private final class ShardCallback implements OnElectionCallBack {
+        private final int shard;
+
+        ShardCallback(int shard) {
+            this.shard = shard;
+        }
+
+        // a shard owned by another member is handed over right away (the application isn't notified of leading it)
+        @Override
+        public void onLeader() {
+            if (isOwnedByOtherMember(shard)) {
+                handOver(shard);
+                return;
+            }
+            ledShards.add(shard);
+            notifiedShards.add(shard);
+            electionCallback.onShardLeader(shard);
+            requestBalance();
+        }
+
+        // only notified once the node stops leading the shard (or for the first role of the shard), e.g. not again
+        // once a shard notified as followed by balance() has been handed over
+        @Override
+        public void onFollower() {
+            boolean wasLeader = ledShards.remove(shard);
+            boolean firstRole = notifiedShards.add(shard);
+            if (wasLeader || firstRole) {
+                electionCallback.onShardFollower(shard);
+            }
+        }
+    }
+}
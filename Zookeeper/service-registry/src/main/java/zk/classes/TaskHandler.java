@@ -0,0 +1,10 @@
+package zk.classes;
+
+// interface to define the processing of the tasks assigned to a worker (see TaskQueue)
+public interface TaskHandler {
+
+    // process the given task (its payload, as submitted).
+    // Note: called on the queue's worker threads. The tasks are delivered at least once: a task assigned to a worker
+    //       which has left before acknowledging it is assigned to another worker.
+    void handle(byte[] task) throws Exception;
+}
@@ -0,0 +1,634 @@
+package zk.classes;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A distributed task queue, driven by the cluster's leader (see FaultTolerantCluster) and served by the workers
+// registered with the service registry.
+//
+// Znodes (under /task_queue):
+//   pending/b_N             - a batch of submitted tasks (persistent sequential, i.e. in submission order)
+//   assignments/<worker>/a_N - a batch of tasks assigned to a worker, named after its registry znode
+// where a batch holds many task payloads, so that a task costs a fraction of a Zookeeper write.
+//
+// The leader moves the pending batches to the workers' assignments, each with a single transaction (the
+// creation of the assignments and the deletion of the pending batch), hence a task is never lost nor assigned
+// twice by a new leader. A pending batch is split among the least loaded workers, and a worker gets at most
+// MAX_OUTSTANDING_ASSIGNMENTS assignments at once (i.e. a slow worker isn't flooded with tasks).
+// A worker claims its assignments as they're created (one getData() each), processes their tasks on its own
+// threads, and acknowledges each assignment by deleting it. Once a worker's (ephemeral) registration disappears,
+// the leader moves its unacknowledged assignments to the other workers (again with a transaction each), hence
+// the tasks are processed at least once.
+// Once the session has expired (see SessionListener), the leader counts the assignments again, and a worker
+// follows its registration, i.e. claims the assignments of the znode it has been registered again with.
+public class TaskQueue implements Watcher, AddressBookListener, SessionListener {
+    static final String ZNODE_ROOT = "/task_queue";
+    private static final String PENDING = "pending";
+    private static final String ASSIGNMENTS = "assignments";
+    private static final String BATCH_PREFIX = "b_";
+    private static final String ASSIGNMENT_PREFIX = "a_";
+    private static final int MAX_OUTSTANDING_ASSIGNMENTS = 4; // per worker
+    private static final int MIN_ASSIGNMENT_TASKS = 16; // a pending batch is not split into smaller assignments
+    private static final int MAX_BATCH_BYTES = 512 * 1024; // below Zookeeper's default jute.maxbuffer (1 MB)
+    private static final int DEFAULT_WORKER_THREADS = 4;
+    private static final long RETRY_MILLIS = 1000;
+    private static final Logger logger = Logger.getLogger(TaskQueue.class);
+    // metrics (see Metrics)
+    static final String ASSIGNED_METRIC = "taskqueue.assigned";
+    static final String ASSIGNMENT_SIZE_METRIC = "taskqueue.assignment.size";
+    static final String COMPLETED_METRIC = "taskqueue.completed";
+    static final String FAILED_METRIC = "taskqueue.failed";
+    static final String REASSIGNED_METRIC = "taskqueue.reassigned";
+
+    private volatile ZooKeeper zooKeeper; // replaced by a new one once the session has expired
+    private final String pendingPath;
+    private final String assignmentsPath;
+
+    // leader state, only accessed on the leader's dispatcher thread (except for the flags)
+    private final EventDispatcher dispatcher; // runs the distribution rounds (collapsed)
+    private volatile boolean distributing = false;
+    private volatile ServiceRegistry registry;
+    private volatile Set<String> liveWorkers = Collections.emptySet(); // registry znode names of the workers
+    private volatile boolean workersChanged = false;
+    private volatile boolean outstandingStale = false; // whether the next round counts the assignments again
+    private final Set<String> dirtyWorkers = ConcurrentHashMap.newKeySet(); // workers whose assignments changed
+    private final Map<String, Integer> outstanding = new HashMap<>(); // worker -> its number of assignments
+
+    // worker state
+    private final EventDispatcher workerThreads; // processes the assigned tasks
+    private volatile String workerPath; // assignments of the worker (null if not working)
+    private volatile ServiceRegistry registration; // registry the worker is registered with
+    private volatile TaskHandler handler;
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet(); // paths of the assignments being processed
+
+    public TaskQueue(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
+        this(zooKeeper, DEFAULT_WORKER_THREADS);
+    }
+
+    // 'workerThreads' - number of threads processing the tasks assigned to this node
+    public TaskQueue(ZooKeeper zooKeeper, int workerThreads) throws KeeperException, InterruptedException {
+        this.zooKeeper = zooKeeper;
+        this.pendingPath = ZNODE_ROOT + "/" + PENDING;
+        this.assignmentsPath = ZNODE_ROOT + "/" + ASSIGNMENTS;
+        this.dispatcher = new EventDispatcher("task-distribution");
+        this.workerThreads = new EventDispatcher("task-worker", workerThreads, 0, 0);
+        createIfMissing(ZNODE_ROOT);
+        createIfMissing(pendingPath);
+        createIfMissing(assignmentsPath);
+    }
+
+    private void createIfMissing(String path) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(path, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // already created
+        }
+    }
+
+    // submit the given tasks as a single batch (i.e. a single Zookeeper write)
+    // returns - the path of the batch's znode
+    // throws - IllegalArgumentException if the batch is larger than MAX_BATCH_BYTES (it should be split)
+    public String submit(@NotNull List<byte[]> tasks) throws KeeperException, InterruptedException {
+        byte[] batch = encodeBatch(tasks);
+        long startNanos = System.nanoTime();
+        try {
+            String path = zooKeeper.create(pendingPath + "/" + BATCH_PREFIX, batch, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                           CreateMode.PERSISTENT_SEQUENTIAL);
+            Metrics.recordOperation(Metrics.ZkOperation.CREATE, pendingPath, startNanos,
+                                    KeeperException.Code.OK.intValue());
+            return path;
+        } catch (KeeperException e) {
+            Metrics.recordOperation(Metrics.ZkOperation.CREATE, pendingPath, startNanos, e.code().intValue());
+            throw e;
+        }
+    }
+
+    // non-blocking version of submit()
+    // returns - a future completed with the path of the batch's znode, or failed with the KeeperException of
+    //           its creation (completed off the Zookeeper event thread)
+    public CompletableFuture<String> submitAsync(@NotNull List<byte[]> tasks) {
+        byte[] batch = encodeBatch(tasks);
+        CompletableFuture<String> submitted = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        zooKeeper.create(pendingPath + "/" + BATCH_PREFIX, batch, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                         CreateMode.PERSISTENT_SEQUENTIAL, (rc, path, ctx, name) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.CREATE, pendingPath, startNanos, rc);
+            ZkFutures.complete(submitted, rc, path, name);
+        }, null);
+        return ZkFutures.offEventThread(submitted);
+    }
+
+    // start distributing the pending tasks to the workers of the given registry (e.g. once elected as the leader)
+    public void startDistributing(@NotNull ServiceRegistry workers) {
+        distributing = true;
+        registry = workers;
+        workers.addListener(this);
+    }
+
+    // stop distributing the tasks (e.g. once the leader has become a follower)
+    public void stopDistributing() {
+        distributing = false;
+        ServiceRegistry workers = registry;
+        if (workers != null) {
+            workers.removeListener(this);
+        }
+        outstandingStale = true; // learned again by the next round
+    }
+
+    @Override
+    public void onAddressBookChanged(AddressBook addressBook) {
+        if (addressBook.isStale()) {
+            return; // not synced with Zookeeper yet
+        }
+        liveWorkers = Set.copyOf(addressBook.getEndpointsByZnode().keySet());
+        workersChanged = true;
+        requestDistribution();
+    }
+
+    private void requestDistribution() {
+        if (distributing) {
+            dispatcher.dispatch(pendingPath, this::distribute);
+        }
+    }
+
+    // a distribution round: reassign the assignments of the workers which have left, then assign the pending
+    // batches to the workers with free slots
+    private void distribute() {
+        if (!distributing) {
+            return;
+        }
+        try {
+            if (outstandingStale) {
+                outstandingStale = false;
+                outstanding.clear();
+                workersChanged = true; // list (and watch) the assignments of every worker again
+            }
+            if (workersChanged) {
+                workersChanged = false;
+                syncWorkers(liveWorkers);
+            }
+            countDirtyWorkers();
+            assignPending();
+        } catch (KeeperException e) {
+            logger.warn("Failed to distribute the tasks: " + e.getMessage());
+            workersChanged = true; // learn the workers again
+            dispatcher.schedule(this::requestDistribution, RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncWorkers(Set<String> live) throws KeeperException, InterruptedException {
+        Set<String> known = new HashSet<>(zooKeeper.getChildren(assignmentsPath, false));
+        known.addAll(outstanding.keySet());
+        for (String worker : live) {
+            if (!outstanding.containsKey(worker)) {
+                createIfMissing(assignmentsPath + "/" + worker);
+                dirtyWorkers.add(worker);
+            }
+        }
+        countDirtyWorkers(); // the workers to reassign the tasks to
+        for (String worker : known) {
+            if (!live.contains(worker)) {
+                reassign(worker);
+            }
+        }
+    }
+
+    // count (and watch) the outstanding assignments of the workers whose assignments have changed, all the
+    // listings issued at once (pipelined) rather than one after the other
+    private void countDirtyWorkers() throws KeeperException, InterruptedException {
+        Map<String, CompletableFuture<List<String>>> listings = new HashMap<>();
+        for (String worker : new ArrayList<>(dirtyWorkers)) {
+            dirtyWorkers.remove(worker);
+            if (liveWorkers.contains(worker)) {
+                listings.put(worker, getChildrenAsync(assignmentsPath + "/" + worker));
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<List<String>>> listing : listings.entrySet()) {
+            List<String> assignments = await(listing.getValue());
+            if (assignments != null) {
+                outstanding.put(listing.getKey(), assignments.size());
+            } else { // not created yet
+                createIfMissing(assignmentsPath + "/" + listing.getKey());
+                outstanding.put(listing.getKey(), 0);
+            }
+        }
+    }
+
+    // move the pending batches (in submission order) to the workers with free slots: the batches are read at
+    // once, and then moved with a transaction each (issued at once as well)
+    private void assignPending() throws KeeperException, InterruptedException {
+        int freeSlots = 0;
+        for (String worker : freeWorkers()) {
+            freeSlots += MAX_OUTSTANDING_ASSIGNMENTS - outstanding.get(worker);
+        }
+        if (freeSlots == 0) {
+            return; // assigned again once a worker acknowledges an assignment
+        }
+        List<String> batches = await(getChildrenAsync(pendingPath));
+        Collections.sort(batches);
+        List<String> batchPaths = new ArrayList<>();
+        List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+        List<Stat> stats = new ArrayList<>();
+        for (String batch : batches.subList(0, Math.min(batches.size(), freeSlots))) {
+            Stat stat = new Stat();
+            batchPaths.add(pendingPath + "/" + batch);
+            reads.add(getDataAsync(pendingPath + "/" + batch, stat));
+            stats.add(stat);
+        }
+
+        List<CompletableFuture<Boolean>> moves = new ArrayList<>();
+        List<List<String>> movedTo = new ArrayList<>();
+        List<Integer> movedTasks = new ArrayList<>();
+        for (int i = 0; i < reads.size(); i++) {
+            byte[] data = await(reads.get(i));
+            List<String> workers = freeWorkers();
+            if (data == null || workers.isEmpty()) {
+                continue; // taken by another leader (or no free slot left)
+            }
+            List<byte[]> tasks = decodeBatch(data);
+            int parts = Math.max(1, Math.min(workers.size(), tasks.size() / MIN_ASSIGNMENT_TASKS));
+            List<Op> ops = new ArrayList<>(parts + 1);
+            for (int part = 0; part < parts; part++) {
+                List<byte[]> assigned = tasks.subList(part * tasks.size() / parts, (part + 1) * tasks.size() / parts);
+                ops.add(Op.create(assignmentsPath + "/" + workers.get(part) + "/" + ASSIGNMENT_PREFIX,
+                                  parts == 1 ? data : encodeBatch(assigned), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                  CreateMode.PERSISTENT_SEQUENTIAL));
+                outstanding.merge(workers.get(part), 1, Integer::sum);
+                Metrics.record(ASSIGNMENT_SIZE_METRIC, assigned.size());
+            }
+            ops.add(Op.delete(batchPaths.get(i), stats.get(i).getVersion()));
+            moves.add(multiAsync(ops));
+            movedTo.add(workers.subList(0, parts));
+            movedTasks.add(tasks.size());
+        }
+        for (int i = 0; i < moves.size(); i++) {
+            if (await(moves.get(i))) {
+                Metrics.count(ASSIGNED_METRIC, movedTasks.get(i));
+            } else {
+                for (String worker : movedTo.get(i)) {
+                    outstanding.merge(worker, -1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    // returns the live workers with a free slot, the least loaded first
+    private List<String> freeWorkers() {
+        List<String> workers = new ArrayList<>();
+        for (Map.Entry<String, Integer> worker : outstanding.entrySet()) {
+            if (worker.getValue() < MAX_OUTSTANDING_ASSIGNMENTS && liveWorkers.contains(worker.getKey())) {
+                workers.add(worker.getKey());
+            }
+        }
+        workers.sort((first, second) -> Integer.compare(outstanding.get(first), outstanding.get(second)));
+        return workers;
+    }
+
+    // move the unacknowledged assignments of a worker which has left to the least loaded live workers
+    private void reassign(String worker) throws KeeperException, InterruptedException {
+        outstanding.remove(worker);
+        String workerAssignments = assignmentsPath + "/" + worker;
+        List<String> assignments;
+        try {
+            assignments = zooKeeper.getChildren(workerAssignments, false);
+        } catch (KeeperException.NoNodeException e) {
+            return;
+        }
+        Collections.sort(assignments);
+        for (String assignment : assignments) {
+            List<String> workers = new ArrayList<>(outstanding.keySet());
+            workers.retainAll(liveWorkers);
+            if (workers.isEmpty()) {
+                logger.warn("No worker to reassign the tasks of " + worker + " to");
+                return;
+            }
+            workers.sort((first, second) -> Integer.compare(outstanding.get(first), outstanding.get(second)));
+            String assignmentPath = workerAssignments + "/" + assignment;
+            Stat stat = new Stat();
+            byte[] data;
+            try {
+                data = zooKeeper.getData(assignmentPath, false, stat);
+            } catch (KeeperException.NoNodeException e) {
+                continue; // acknowledged in the meantime
+            }
+            String target = workers.get(0);
+            List<Op> ops = List.of(Op.create(assignmentsPath + "/" + target + "/" + ASSIGNMENT_PREFIX, data,
+                                             ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL),
+                                   Op.delete(assignmentPath, stat.getVersion()));
+            if (multi(ops)) {
+                outstanding.merge(target, 1, Integer::sum);
+                Metrics.count(REASSIGNED_METRIC);
+            }
+        }
+        try {
+            zooKeeper.delete(workerAssignments, -1);
+            logger.info("Reassigned the tasks of " + worker);
+        } catch (KeeperException.NoNodeException | KeeperException.NotEmptyException e) {
+            // removed by another leader, or assigned again in the meantime
+        }
+    }
+
+    // returns - false if the transaction has been rejected because of a concurrent change (e.g. by another leader)
+    private boolean multi(List<Op> ops) throws KeeperException, InterruptedException {
+        return await(multiAsync(ops));
+    }
+
+    private CompletableFuture<Boolean> multiAsync(List<Op> ops) {
+        CompletableFuture<Boolean> applied = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        zooKeeper.multi(ops, (rc, path, ctx, results) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.MULTI, assignmentsPath, startNanos, rc);
+            if (rc == KeeperException.Code.BADVERSION.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                applied.complete(false);
+            } else {
+                ZkFutures.complete(applied, rc, assignmentsPath, true);
+            }
+        }, null);
+        return applied;
+    }
+
+    // returns a future of the (watched) children of the given znode, completed with null if it doesn't exist
+    private CompletableFuture<List<String>> getChildrenAsync(String path) {
+        CompletableFuture<List<String>> listed = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        zooKeeper.getChildren(path, this, (rc, listedPath, ctx, children) -> {
+            boolean missing = rc == KeeperException.Code.NONODE.intValue();
+            Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, listedPath, startNanos,
+                                    missing ? KeeperException.Code.OK.intValue() : rc);
+            ZkFutures.complete(listed, missing ? KeeperException.Code.OK.intValue() : rc, listedPath, children);
+        }, null);
+        return listed;
+    }
+
+    // returns a future of the data of the given znode (and sets its version in the given stat), completed with null
+    // if it doesn't exist
+    private CompletableFuture<byte[]> getDataAsync(String path, Stat stat) {
+        CompletableFuture<byte[]> read = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        zooKeeper.getData(path, false, (rc, readPath, ctx, data, readStat) -> {
+            boolean missing = rc == KeeperException.Code.NONODE.intValue();
+            Metrics.recordOperation(Metrics.ZkOperation.GET_DATA, readPath, startNanos,
+                                    missing ? KeeperException.Code.OK.intValue() : rc);
+            if (readStat != null) {
+                stat.setVersion(readStat.getVersion());
+            }
+            ZkFutures.complete(read, missing ? KeeperException.Code.OK.intValue() : rc, readPath, data);
+        }, null);
+        return read;
+    }
+
+    // waits for the result of the given (asynchronous) Zookeeper call
+    private static <T> T await(CompletableFuture<T> future) throws KeeperException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw (KeeperException) e.getCause();
+        }
+    }
+
+    // start processing the tasks assigned to this node, i.e. to the (first) znode it is registered with in the
+    // given registry (see ServiceRegistry.getRegisteredZnodes())
+    // throws - IllegalStateException if the node isn't registered with the registry
+    public void startWorking(@NotNull ServiceRegistry workerRegistry, @NotNull TaskHandler taskHandler)
+            throws KeeperException, InterruptedException {
+        String path = workerPath(workerRegistry);
+        if (path == null) {
+            throw new IllegalStateException("The node isn't registered with the registry");
+        }
+        createIfMissing(path);
+        handler = taskHandler;
+        registration = workerRegistry;
+        workerPath = path;
+        listAssignments();
+    }
+
+    // stop claiming new assignments (the claimed ones are still processed and acknowledged)
+    public void stopWorking() {
+        workerPath = null;
+        registration = null;
+    }
+
+    // returns the assignments' path of the (first) znode registered with the given registry, or null if none
+    private String workerPath(ServiceRegistry workerRegistry) {
+        List<String> znodes = workerRegistry.getRegisteredZnodes();
+        if (znodes.isEmpty()) {
+            return null;
+        }
+        String znode = znodes.get(0);
+        return assignmentsPath + "/" + znode.substring(znode.lastIndexOf('/') + 1);
+    }
+
+    // switch to the new session (see ZKConnection): the watches are gone along with the expired session, hence
+    // the leader counts (and watches) the assignments again, and the worker follows its registration
+    // Note: add the queue as a session listener after the worker's registry, so that the node is registered
+    //       again by then (otherwise followed once it is)
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zooKeeper = zooKeeper;
+        outstandingStale = true;
+        requestDistribution();
+        String expiredPath = workerPath;
+        if (expiredPath != null) {
+            followRegistration(expiredPath);
+        }
+    }
+
+    // claim the assignments of the znode the worker has been registered again with (under a new name, its
+    // assignments under the expired one are reassigned by the leader), retried until it is registered again
+    private void followRegistration(String expiredPath) {
+        ServiceRegistry workerRegistry = registration;
+        if (workerRegistry == null || workerPath == null) {
+            return; // stopped working
+        }
+        String path = workerPath(workerRegistry);
+        if (path == null || path.equals(expiredPath)) {
+            workerThreads.schedule(() -> followRegistration(expiredPath), RETRY_MILLIS);
+            return;
+        }
+        try {
+            createIfMissing(path);
+        } catch (KeeperException e) {
+            logger.warn("Failed to follow the worker's registration: " + e.getMessage());
+            workerThreads.schedule(() -> followRegistration(expiredPath), RETRY_MILLIS);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        workerPath = path;
+        logger.info("Session expired, claiming the assignments of " + path);
+        listAssignments();
+    }
+
+    private void listAssignments() {
+        String path = workerPath;
+        if (path == null) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        zooKeeper.getChildren(path, this, (rc, parent, ctx, children) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, parent, startNanos, rc);
+            if (rc == KeeperException.Code.OK.intValue()) {
+                Collections.sort(children);
+                for (String assignment : children) {
+                    if (claimed.add(parent + "/" + assignment)) {
+                        claim(parent + "/" + assignment);
+                    }
+                }
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                if (parent.equals(workerPath)) {
+                    workerThreads.execute(this::restoreWorkerPath);
+                }
+            } else if (rc != KeeperException.Code.SESSIONEXPIRED.intValue()) {
+                workerThreads.schedule(this::listAssignments, RETRY_MILLIS);
+            }
+        }, null);
+    }
+
+    // create the worker's assignments znode again, and list (and watch) it again: it is removed by a leader which
+    // hasn't seen the worker's registration yet (see syncWorkers()), which assigns it tasks again once it has
+    private void restoreWorkerPath() {
+        String path = workerPath;
+        if (path == null) {
+            return;
+        }
+        try {
+            createIfMissing(path);
+        } catch (KeeperException e) {
+            logger.warn("Failed to restore the worker's assignments " + path + ": " + e.getMessage());
+            workerThreads.schedule(this::restoreWorkerPath, RETRY_MILLIS);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        listAssignments();
+    }
+
+    // read the given assignment, and process its tasks on the worker threads
+    private void claim(String path) {
+        long startNanos = System.nanoTime();
+        zooKeeper.getData(path, false, (rc, assignmentPath, ctx, data, stat) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.GET_DATA, assignmentPath, startNanos, rc);
+            if (rc != KeeperException.Code.OK.intValue()) {
+                claimed.remove(path); // reassigned (or claimed again once listed again)
+                return;
+            }
+            List<byte[]> tasks = decodeBatch(data);
+            AtomicInteger remaining = new AtomicInteger(tasks.size());
+            for (byte[] task : tasks) {
+                workerThreads.execute(() -> {
+                    processTask(task);
+                    if (remaining.decrementAndGet() == 0) {
+                        acknowledge(assignmentPath, stat.getVersion());
+                    }
+                });
+            }
+            if (tasks.isEmpty()) {
+                acknowledge(assignmentPath, stat.getVersion());
+            }
+        }, null);
+    }
+
+    private void processTask(byte[] task) {
+        try {
+            handler.handle(task);
+            Metrics.count(COMPLETED_METRIC);
+        } catch (Exception e) {
+            // not retried: a failing task would otherwise block its whole assignment
+            Metrics.count(FAILED_METRIC);
+            logger.error("Failed to process a task", e);
+        }
+    }
+
+    // acknowledge the assignment once all its tasks are processed (a missing one has been reassigned)
+    private void acknowledge(String path, int version) {
+        long startNanos = System.nanoTime();
+        zooKeeper.delete(path, version, (rc, deletedPath, ctx) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.DELETE, deletedPath, startNanos,
+                                    rc == KeeperException.Code.NONODE.intValue()
+                                    ? KeeperException.Code.OK.intValue() : rc);
+            if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                workerThreads.schedule(() -> acknowledge(path, version), RETRY_MILLIS);
+                return;
+            }
+            claimed.remove(path);
+        }, null);
+    }
+
+    // close the queue: stop distributing and processing the tasks
+    public void close() {
+        stopDistributing();
+        stopWorking();
+        dispatcher.shutdown();
+        workerThreads.shutdown();
+    }
+
+    // Note: executed on the Zookeeper event thread
+    @Override
+    public void process(WatchedEvent event) {
+        String path = event.getPath();
+        if (event.getType() == Event.EventType.NodeDeleted && path.equals(workerPath)) {
+            workerThreads.execute(this::restoreWorkerPath);
+            return;
+        }
+        if (event.getType() != Event.EventType.NodeChildrenChanged) {
+            return;
+        }
+        if (path.equals(workerPath)) {
+            listAssignments();
+        }
+        if (path.equals(pendingPath)) {
+            requestDistribution();
+        } else if (path.startsWith(assignmentsPath + "/") && distributing) {
+            dirtyWorkers.add(path.substring(assignmentsPath.length() + 1)); // e.g. an assignment acknowledged
+            requestDistribution();
+        }
+    }
+
+    // returns the data of a batch of tasks: number of tasks (4 bytes) | for each task: size (4 bytes) | payload
+    static byte[] encodeBatch(List<byte[]> tasks) {
+        int size = 4;
+        for (byte[] task : tasks) {
+            size += 4 + task.length;
+        }
+        if (size > MAX_BATCH_BYTES) {
+            throw new IllegalArgumentException("Batch of tasks too large: " + size + " bytes (max "
+                                               + MAX_BATCH_BYTES + ")");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).putInt(tasks.size());
+        for (byte[] task : tasks) {
+            buffer.putInt(task.length).put(task);
+        }
+        return buffer.array();
+    }
+
+    static List<byte[]> decodeBatch(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int count = buffer.getInt();
+        List<byte[]> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] task = new byte[buffer.getInt()];
+            buffer.get(task);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+}
@@ -6,6 +6,7 @@ public class ZookeeperClient {
 
     private static final String ZOOKEEPER_ADDRESS = "localhost:2181";
     private static final int SESSION_TIMEOUT = 3000;
+    private ZKConnection connection;
     private ZooKeeper zooKeeper;
 
     public static void main(String[] args) throws InterruptedException, IOException {
@@ -19,15 +20,13 @@ public class ZookeeperClient {
 
     private void connectToZookeeper() throws IOException
     {
-        ZKConnection conn = new ZKConnection();
-        zooKeeper = conn.getConnection();
+        connection = new ZKConnection();
+        zooKeeper = connection.getConnection();
     }
 
     // synchronise main thread with zk event thread
     private void syncWithEventThread() throws InterruptedException
     {
-        synchronized (zooKeeper) {
-            zooKeeper.wait();
-        }
+        connection.waitUntilClosed();
     }
 }
@@ -0,0 +1,12 @@
+package zk.classes;
+
+import java.util.List;
+
+// interface to get notified of the changes to a znode's children (see WatchManager)
+public interface ChildrenListener {
+
+    // called with the latest children of the znode once they have changed, or with null if the znode doesn't exist.
+    // Note: called on a thread of the watch manager, a burst of changes may be notified only once
+    //       (with the latest children)
+    void onChildrenChanged(String path, List<String> children);
+}
@@ -0,0 +1,13 @@
+package zk.classes;
+
+import org.apache.zookeeper.data.Stat;
+
+// interface to get notified of the changes to a znode's data (see WatchManager)
+public interface DataListener {
+
+    // called with the latest data (and stat) of the znode once it has changed, or with nulls if the znode
+    // doesn't exist (i.e. it has been deleted, or it isn't created yet).
+    // Note: called on a thread of the watch manager, a burst of changes may be notified only once
+    //       (with the latest data)
+    void onDataChanged(String path, byte[] data, Stat stat);
+}
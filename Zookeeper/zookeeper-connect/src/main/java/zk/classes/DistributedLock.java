@@ -0,0 +1,402 @@
+package zk.classes;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A fair, reentrant distributed lock: the lock's waiters queue up as ephemeral sequential znodes under the lock's
+ * znode, and the first one holds the lock.
+ * <p>
+ * Like the leader election (see FaultTolerantCluster), each waiter only watches its closest predecessor, hence the
+ * release of the lock wakes up a single waiter (no herd effect). The waiters are listed once per acquisition: the
+ * waiters queued later can only get behind, hence a deleted predecessor moves on to the next one in the listing.
+ * <p>
+ * The lock is held by a thread (of any process): the threads of a process queue up with their own znodes as well,
+ * and a thread holding the lock may acquire it again (it's released once unlocked as many times).
+ * The shared (read) locks of a DistributedReadWriteLock only wait for the closest preceding exclusive (write) one.
+ * A lock is released once its session ends (e.g. expires): once the new session is established (see
+ * onSessionRecovered()), the lock is no longer held by its threads (see isHeldByCurrentThread()), and each of
+ * their unlock() calls for the lost acquisitions throws a SessionExpiredException, i.e. the holder finds out that
+ * the work done under the lock may have overlapped with another holder's. The threads waiting for the lock fail
+ * with a SessionExpiredException as well.
+ * A lost connection isn't a lost lock though: the lock's calls wait for the client to reconnect (i.e. retry until
+ * the session has expired), so that a waiter's znode is never left behind on a live session (it would block the
+ * other waiters until the session ends).
+ */
+public class DistributedLock implements SessionListener {
+    static final String EXCLUSIVE_PREFIX = "write-";
+    static final String SHARED_PREFIX = "read-";
+    private static final int SEQUENCE_DIGITS = 10; // appended by the Zookeeper server
+    private static final long RETRY_MILLIS = 100; // between the retries of a call while the connection is lost
+    // metrics (see Metrics)
+    static final String WAIT_DURATION_METRIC = "lock.wait.duration";
+    static final String TIMEOUTS_METRIC = "lock.timeouts";
+
+    private volatile ZooKeeper zooKeeper; // replaced by a new one once the session has expired
+    private final String lockPath;
+    private final boolean shared;
+    private final DistributedLock exclusiveLock; // exclusive lock of the same read-write lock (shared locks only)
+    private final Map<Thread, Hold> holds = new ConcurrentHashMap<>(); // threads holding the lock
+    private final Map<Thread, Hold> lostHolds = new ConcurrentHashMap<>(); // threads which held it on an expired session
+
+    // an exclusive lock on the given znode (created, along with its parents, if missing)
+    public DistributedLock(ZooKeeper zooKeeper, String lockPath) {
+        this(zooKeeper, lockPath, false, null);
+    }
+
+    DistributedLock(ZooKeeper zooKeeper, String lockPath, boolean shared, DistributedLock exclusiveLock) {
+        if (!lockPath.startsWith("/") || lockPath.length() < 2 || lockPath.endsWith("/")) {
+            throw new IllegalArgumentException("Invalid lock path: " + lockPath);
+        }
+        this.zooKeeper = zooKeeper;
+        this.lockPath = lockPath;
+        this.shared = shared;
+        this.exclusiveLock = exclusiveLock;
+    }
+
+    public String getLockPath() {
+        return lockPath;
+    }
+
+    // acquire the lock, waiting as long as it takes
+    public void lock() throws KeeperException, InterruptedException {
+        acquire(-1);
+    }
+
+    // acquire the lock only if it's free (i.e. without waiting)
+    // returns - whether the lock has been acquired
+    public boolean tryLock() throws KeeperException, InterruptedException {
+        return acquire(0);
+    }
+
+    // acquire the lock, waiting for it up to the given time
+    // returns - whether the lock has been acquired (or else the waiter has left the queue)
+    public boolean tryLock(long time, TimeUnit unit) throws KeeperException, InterruptedException {
+        return acquire(Math.max(0, unit.toNanos(time)));
+    }
+
+    // release the lock (once unlocked as many times as it has been acquired by the thread)
+    // The znode is deleted before the hold is dropped, i.e. the lock is still held if interrupted (unlock() may be
+    // called again), and a lost connection is waited for (see delete())
+    // throws - IllegalMonitorStateException if the current thread doesn't hold the lock
+    //          SessionExpiredException if the lock has been lost along with an expired session
+    public void unlock() throws KeeperException, InterruptedException {
+        Thread thread = Thread.currentThread();
+        Hold hold = holds.get(thread);
+        if (hold == null) {
+            Hold lost = lostHolds.get(thread);
+            if (lost == null) {
+                throw new IllegalMonitorStateException("The lock " + lockPath + " is not held by the current thread");
+            }
+            if (--lost.count == 0) {
+                lostHolds.remove(thread);
+            }
+            throw new KeeperException.SessionExpiredException();
+        }
+        if (hold.count > 1) {
+            hold.count--;
+            return;
+        }
+        try {
+            delete(zooKeeper, hold.path);
+        } catch (KeeperException.SessionExpiredException e) {
+            holds.remove(thread, hold); // lost along with the session
+            throw e;
+        }
+        if (!holds.remove(thread, hold)) { // lost along with an expired session in the meantime
+            lostHolds.remove(thread, hold);
+            throw new KeeperException.SessionExpiredException();
+        }
+    }
+
+    // returns - false once the lock has been lost along with an expired session
+    public boolean isHeldByCurrentThread() {
+        return holds.containsKey(Thread.currentThread());
+    }
+
+    // returns the number of times the current thread holds the lock (0 if it doesn't)
+    public int getHoldCount() {
+        Hold hold = holds.get(Thread.currentThread());
+        return hold != null ? hold.count : 0;
+    }
+
+    // switch to the new session (see ZKConnection): the waiters' znodes are gone along with the expired session,
+    // hence the threads holding the lock lose it (see unlock())
+    @Override
+    public synchronized void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zooKeeper = zooKeeper;
+        lostHolds.putAll(holds);
+        holds.clear();
+    }
+
+    // 'timeoutNanos' - max time to wait for the lock (-1 = no limit)
+    private boolean acquire(long timeoutNanos) throws KeeperException, InterruptedException {
+        Hold hold = holds.get(Thread.currentThread());
+        if (hold != null) {
+            hold.count++; // reentrant acquisition
+            return true;
+        }
+        // the whole acquisition is issued with the same client, i.e. fails once its session has expired
+        ZooKeeper client = zooKeeper;
+        long startNanos = System.nanoTime();
+        String path = enqueue(client);
+        boolean acquired;
+        try {
+            acquired = awaitTurn(client, path, startNanos, timeoutNanos);
+        } catch (KeeperException | InterruptedException | RuntimeException e) {
+            leaveQueue(client, path, e);
+            throw e;
+        }
+        if (!acquired) {
+            delete(client, path); // timed out: leave the queue
+        }
+        Metrics.record(WAIT_DURATION_METRIC, System.nanoTime() - startNanos);
+        if (acquired) {
+            addHold(client, path);
+        } else {
+            Metrics.count(TIMEOUTS_METRIC);
+        }
+        return acquired;
+    }
+
+    // leave the queue once the acquisition has failed (a failure of the deletion is added to the given one)
+    private void leaveQueue(ZooKeeper client, String path, Exception failure) {
+        try {
+            delete(client, path);
+        } catch (KeeperException e) {
+            failure.addSuppressed(e);
+        } catch (InterruptedException e) {
+            failure.addSuppressed(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // throws - SessionExpiredException if the session has been replaced in the meantime (the znode is gone)
+    private synchronized void addHold(ZooKeeper client, String path) throws KeeperException {
+        if (client != zooKeeper) {
+            throw new KeeperException.SessionExpiredException();
+        }
+        holds.put(Thread.currentThread(), new Hold(path));
+    }
+
+    // create the waiter's znode (and the lock's znode if missing)
+    // The name has a unique id, so that a creation whose result was lost along with the connection is found
+    // rather than left behind (i.e. holding the lock until the session ends)
+    private String enqueue(ZooKeeper client) throws KeeperException, InterruptedException {
+        String prefix = (shared ? SHARED_PREFIX : EXCLUSIVE_PREFIX) + UUID.randomUUID() + "-";
+        while (true) {
+            long startNanos = System.nanoTime();
+            try {
+                String path = client.create(lockPath + "/" + prefix, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                               CreateMode.EPHEMERAL_SEQUENTIAL);
+                Metrics.recordOperation(Metrics.ZkOperation.CREATE, lockPath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                return path;
+            } catch (KeeperException.NoNodeException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.CREATE, lockPath, startNanos, e.code().intValue());
+                createLockZnode(client);
+            } catch (KeeperException.ConnectionLossException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.CREATE, lockPath, startNanos, e.code().intValue());
+                for (String child : listWaiters(client)) {
+                    if (child.startsWith(prefix)) {
+                        return lockPath + "/" + child; // created before the connection was lost
+                    }
+                }
+            }
+        }
+    }
+
+    private void createLockZnode(ZooKeeper client) throws KeeperException, InterruptedException {
+        for (int i = lockPath.indexOf('/', 1); ; i = lockPath.indexOf('/', i + 1)) {
+            String path = i > 0 ? lockPath.substring(0, i) : lockPath;
+            try {
+                client.create(path, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException e) {
+                // already created
+            }
+            if (i < 0) {
+                return;
+            }
+        }
+    }
+
+    // Note: retried while the connection is lost
+    private List<String> listWaiters(ZooKeeper client) throws KeeperException, InterruptedException {
+        while (true) {
+            long startNanos = System.nanoTime();
+            try {
+                List<String> children = client.getChildren(lockPath, false);
+                Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, lockPath, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                return children;
+            } catch (KeeperException.ConnectionLossException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, lockPath, startNanos, e.code().intValue());
+                Thread.sleep(RETRY_MILLIS);
+            } catch (KeeperException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, lockPath, startNanos, e.code().intValue());
+                throw e;
+            }
+        }
+    }
+
+    // wait until no waiter queued before the given one blocks it
+    // returns - false if timed out
+    private boolean awaitTurn(ZooKeeper client, String path, long startNanos, long timeoutNanos)
+            throws KeeperException, InterruptedException {
+        String name = path.substring(lockPath.length() + 1);
+        String[] waiters = listWaiters(client).toArray(new String[0]);
+        Arrays.sort(waiters, Comparator.comparingLong(DistributedLock::sequence));
+        int index = Arrays.binarySearch(waiters, name, Comparator.comparingLong(DistributedLock::sequence));
+        if (index < 0) {
+            throw KeeperException.create(KeeperException.Code.NONODE, path); // e.g. removed along with the session
+        }
+
+        String ownExclusive = exclusiveLock != null ? exclusiveLock.heldPath() : null;
+        boolean blocked = false;
+        while (true) {
+            index = blocker(waiters, index - 1, ownExclusive);
+            if (index < 0) {
+                // the blockers are deleted along with an expired session before its client is told, i.e. the
+                // waiter's own znode may be gone as well
+                return !blocked || ownZnodeExists(client, path);
+            }
+            blocked = true;
+            CountDownLatch released = new CountDownLatch(1);
+            String blockerPath = lockPath + "/" + waiters[index];
+            long existsStartNanos = System.nanoTime();
+            AtomicBoolean deleted = new AtomicBoolean();
+            boolean exists;
+            try {
+                exists = client.exists(blockerPath, event -> {
+                    deleted.set(event.getType() == Watcher.Event.EventType.NodeDeleted);
+                    released.countDown();
+                }) != null;
+                Metrics.recordOperation(Metrics.ZkOperation.EXISTS, blockerPath, existsStartNanos,
+                                        KeeperException.Code.OK.intValue());
+            } catch (KeeperException.ConnectionLossException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.EXISTS, blockerPath, existsStartNanos,
+                                        e.code().intValue());
+                if (timeoutNanos >= 0 && System.nanoTime() - startNanos >= timeoutNanos) {
+                    return false;
+                }
+                Thread.sleep(RETRY_MILLIS); // wait for the client to reconnect
+                index++; // and check the same blocker again
+                continue;
+            }
+            if (!exists) {
+                continue; // released in the meantime, check the next one ahead
+            }
+            if (timeoutNanos < 0) {
+                released.await();
+            } else {
+                long remainingNanos = timeoutNanos - (System.nanoTime() - startNanos);
+                if (remainingNanos <= 0 || !released.await(remainingNanos, TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            if (!deleted.get()) {
+                index++; // check the same blocker again (e.g. woken up by a disconnection, failing if expired)
+            }
+        }
+    }
+
+    // throws - NoNodeException if the waiter's znode has been removed (along with its session)
+    // Note: retried while the connection is lost
+    private boolean ownZnodeExists(ZooKeeper client, String path) throws KeeperException, InterruptedException {
+        while (true) {
+            long startNanos = System.nanoTime();
+            boolean exists;
+            try {
+                exists = client.exists(path, false) != null;
+                Metrics.recordOperation(Metrics.ZkOperation.EXISTS, path, startNanos,
+                                        KeeperException.Code.OK.intValue());
+            } catch (KeeperException.ConnectionLossException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.EXISTS, path, startNanos, e.code().intValue());
+                Thread.sleep(RETRY_MILLIS);
+                continue;
+            } catch (KeeperException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.EXISTS, path, startNanos, e.code().intValue());
+                throw e;
+            }
+            if (!exists) {
+                throw KeeperException.create(KeeperException.Code.NONODE, path);
+            }
+            return true;
+        }
+    }
+
+    // returns the index of the closest waiter at or before the given index blocking this one (-1 if none):
+    // any waiter for an exclusive lock, only the ones for an exclusive lock for a shared one (except for the
+    // current thread's, i.e. a thread holding the write lock may acquire the read lock)
+    private int blocker(String[] waiters, int from, String ownExclusive) {
+        for (int i = from; i >= 0; i--) {
+            if (!shared) {
+                return i;
+            }
+            if (waiters[i].startsWith(EXCLUSIVE_PREFIX) && !(lockPath + "/" + waiters[i]).equals(ownExclusive)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // returns the path of the current thread's znode, if it holds the lock (or else null)
+    private String heldPath() {
+        Hold hold = holds.get(Thread.currentThread());
+        return hold != null ? hold.path : null;
+    }
+
+    // delete the given waiter's znode, retried while the connection is lost (i.e. until deleted, or the session
+    // has expired): a znode left behind on a live session would block the other waiters until the session ends
+    private void delete(ZooKeeper client, String path) throws KeeperException, InterruptedException {
+        while (true) {
+            long startNanos = System.nanoTime();
+            try {
+                client.delete(path, -1);
+                Metrics.recordOperation(Metrics.ZkOperation.DELETE, path, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                // removed along with an expired session (or deleted before the connection was lost)
+                Metrics.recordOperation(Metrics.ZkOperation.DELETE, path, startNanos,
+                                        KeeperException.Code.OK.intValue());
+                return;
+            } catch (KeeperException.ConnectionLossException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.DELETE, path, startNanos, e.code().intValue());
+                Thread.sleep(RETRY_MILLIS);
+            } catch (KeeperException e) {
+                Metrics.recordOperation(Metrics.ZkOperation.DELETE, path, startNanos, e.code().intValue());
+                throw e;
+            }
+        }
+    }
+
+    // returns the sequence number of the given waiter's znode (e.g. 12 for write-<id>-0000000012)
+    private static long sequence(String name) {
+        return Long.parseLong(name, name.length() - SEQUENCE_DIGITS, name.length(), 10);
+    }
+
+    // the znode of a thread holding the lock, along with its number of (reentrant) acquisitions
+    // Note: only accessed by its thread
+    private static final class Hold {
+        private final String path;
+        private int count = 1;
+
+        Hold(String path) {
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package zk.classes;
+
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * A fair distributed read-write lock: the readers and the writers queue up under the same znode (see
+ * DistributedLock), a writer waits for all the waiters ahead of it, while a reader only waits for the closest
+ * writer ahead of it. Hence all the readers queued between two writers hold the lock at once.
+ * <p>
+ * Both locks are reentrant, and a thread holding the write lock may acquire the read lock (e.g. to downgrade it,
+ * by releasing the write lock afterwards). A thread holding the read lock must not acquire the write lock though
+ * (it would wait for itself).
+ * Both locks are lost along with an expired session (see DistributedLock).
+ */
+public class DistributedReadWriteLock implements SessionListener {
+    private final DistributedLock writeLock;
+    private final DistributedLock readLock;
+
+    // a read-write lock on the given znode (created, along with its parents, if missing)
+    public DistributedReadWriteLock(ZooKeeper zooKeeper, String lockPath) {
+        this.writeLock = new DistributedLock(zooKeeper, lockPath, false, null);
+        this.readLock = new DistributedLock(zooKeeper, lockPath, true, writeLock);
+    }
+
+    public DistributedLock readLock() {
+        return readLock;
+    }
+
+    public DistributedLock writeLock() {
+        return writeLock;
+    }
+
+    // switch both locks to the new session (see ZKConnection)
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        writeLock.onSessionRecovered(zooKeeper);
+        readLock.onSessionRecovered(zooKeeper);
+    }
+}
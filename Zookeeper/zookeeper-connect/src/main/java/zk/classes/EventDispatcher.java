@@ -0,0 +1,192 @@
+package zk.classes;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work triggered by Zookeeper events on its own thread(s), so that the (single) Zookeeper event thread
+ * is never blocked by it.
+ * <p>
+ * The work is dispatched with a key (e.g. the path of the watched znode). A burst of requests for the same key
+ * is collapsed into a single run: each request delays the run by the debounce window, but never by more than
+ * the max staleness since the first (pending) request. The runs of a key never overlap, a request received
+ * while the key is running is served by another run once the current one has finished.
+ */
+public class EventDispatcher {
+    private static final Logger logger = Logger.getLogger(EventDispatcher.class);
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final long debounceNanos;
+    private final long maxStalenessNanos;
+    private final Map<String, PendingRun> pendingRuns = new HashMap<>(); // guarded by 'this'
+
+    // dispatcher with a single thread, running the work as soon as possible
+    public EventDispatcher(String name) {
+        this(name, 1, 0, 0);
+    }
+
+    // 'debounceMillis' - time to wait for more requests (for the same key) before running it
+    // 'maxStalenessMillis' - max time a request may be delayed by the debounce window
+    public EventDispatcher(String name, int threads, long debounceMillis, long maxStalenessMillis) {
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMillis, maxStalenessMillis));
+        this.executor = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory(name));
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    // run the given task for the given key (collapsed with any other pending request for the same key)
+    // Note: the last dispatched task of a key is run
+    public synchronized void dispatch(String key, Runnable task) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        long now = System.nanoTime();
+        PendingRun run = pendingRuns.get(key);
+        if (run == null) {
+            run = new PendingRun(key, task, now);
+            pendingRuns.put(key, run);
+            schedule(run, now + debounceNanos, now);
+            return;
+        }
+
+        run.task = task;
+        if (run.running) {
+            run.requestedWhileRunning = true;
+            return;
+        }
+        // push the run back by the debounce window, but not beyond the staleness bound
+        long runAt = Math.min(now + debounceNanos, run.firstRequestNanos + maxStalenessNanos);
+        if (runAt > run.scheduledAtNanos) {
+            run.future.cancel(false);
+            schedule(run, runAt, now);
+        }
+    }
+
+    // run the given task once (not collapsed with any other task)
+    // Note: like dispatch(), the task is dropped once the dispatcher is shut down
+    public void execute(Runnable task) {
+        try {
+            executor.execute(() -> runSafely(task));
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    // run the given task once, after the given delay (not collapsed with any other task)
+    // returns - the future of the run (cancelled if the dispatcher is shut down)
+    public Future<?> schedule(Runnable task, long delayMillis) {
+        try {
+            return executor.schedule(() -> runSafely(task), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return cancelled();
+        }
+    }
+
+    // run the given task periodically (e.g. a housekeeping task), until the returned future is cancelled
+    public Future<?> scheduleAtFixedRate(Runnable task, long periodMillis) {
+        try {
+            return executor.scheduleAtFixedRate(() -> runSafely(task), periodMillis, periodMillis,
+                                                TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return cancelled();
+        }
+    }
+
+    // returns the future of a task dropped by the shut down executor
+    private static Future<?> cancelled() {
+        Future<?> future = new CompletableFuture<>();
+        future.cancel(false);
+        return future;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void schedule(PendingRun run, long runAtNanos, long now) {
+        long token = ++run.scheduleToken;
+        run.scheduledAtNanos = runAtNanos;
+        try {
+            run.future = executor.schedule(() -> start(run, token), runAtNanos - now, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            pendingRuns.remove(run.key); // shut down in the meantime
+        }
+    }
+
+    private void start(PendingRun run, long token) {
+        Runnable task;
+        synchronized (this) {
+            if (token != run.scheduleToken || run.running) {
+                return; // rescheduled in the meantime
+            }
+            run.running = true;
+            task = run.task;
+        }
+
+        runSafely(task);
+
+        synchronized (this) {
+            run.running = false;
+            if (run.requestedWhileRunning && !executor.isShutdown()) {
+                run.requestedWhileRunning = false;
+                long now = System.nanoTime();
+                run.firstRequestNanos = now;
+                schedule(run, now + debounceNanos, now);
+            } else {
+                pendingRuns.remove(run.key);
+            }
+        }
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Dispatched task failed", e);
+        }
+    }
+
+    // state of the requests (collapsed into a single run) for a key
+    private static class PendingRun {
+        private final String key;
+        private Runnable task;
+        private long firstRequestNanos;
+        private long scheduledAtNanos;
+        private long scheduleToken;
+        private ScheduledFuture<?> future;
+        private boolean running;
+        private boolean requestedWhileRunning;
+
+        PendingRun(String key, Runnable task, long firstRequestNanos) {
+            this.key = key;
+            this.task = task;
+            this.firstRequestNanos = firstRequestNanos;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true); // don't keep the application alive
+            return thread;
+        }
+    }
+}
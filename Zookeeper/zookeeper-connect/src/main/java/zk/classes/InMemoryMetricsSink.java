@@ -0,0 +1,140 @@
+package zk.classes;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A MetricsSink keeping the metrics in memory (e.g. to print or scrape them periodically).
+ * <p>
+ * The counters are LongAdders and the histograms have log-linear buckets (8 per power of 2, i.e. the percentiles
+ * are accurate to 12.5%), so recording a value is lock-free and allocation-free once the metric exists.
+ */
+public class InMemoryMetricsSink implements MetricsSink {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    @Override
+    public void count(String name, long amount) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, key -> new LongAdder());
+        }
+        counter.add(amount);
+    }
+
+    @Override
+    public void record(String name, long value) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(name, key -> new Histogram());
+        }
+        histogram.record(value);
+    }
+
+    // returns the current value of the given counter (0 if it has never been counted)
+    public long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    // returns the given histogram (null if no value has been recorded in it)
+    public Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    // returns all the metrics, one per line, sorted by name (the histograms of latencies are printed in millis)
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            report.append(String.format(Locale.ENGLISH, "%-40s %12d%n", counter.getKey(), counter.getValue().sum()));
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            double scale = entry.getKey().endsWith("latency") || entry.getKey().endsWith("duration")
+                           || entry.getKey().endsWith("lag") ? 1e6 : 1;
+            report.append(String.format(Locale.ENGLISH, "%-40s count=%d p50=%.2f p99=%.2f max=%.2f%s%n",
+                                        entry.getKey(), histogram.getCount(), histogram.getPercentile(0.5) / scale,
+                                        histogram.getPercentile(0.99) / scale, histogram.getMax() / scale,
+                                        scale == 1 ? "" : " ms"));
+        }
+        return report.toString();
+    }
+
+    // a histogram of non-negative values with log-linear buckets
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(bucketIndex(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        // returns the (upper bound of the bucket of the) given percentile, e.g. 0.99 for p99
+        public long getPercentile(double percentile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(percentile * n), 1);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        // values below SUB_BUCKETS have a bucket each, the others are split into SUB_BUCKETS buckets per power of 2
+        private static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int highestBit = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int highestBit = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            long lowerBound = (1L << highestBit) + (subBucket << (highestBit - SUB_BUCKET_BITS));
+            return lowerBound + (1L << (highestBit - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
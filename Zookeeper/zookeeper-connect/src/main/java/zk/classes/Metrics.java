@@ -0,0 +1,95 @@
+package zk.classes;
+
+/**
+ * Entry point of the instrumentation of the registry, the election and the connection.
+ * <p>
+ * The metrics are sent to the installed MetricsSink (none by default, i.e. they cost a volatile read),
+ * e.g. an InMemoryMetricsSink, or an adapter to a monitoring system. The metric names are constants, so
+ * recording one doesn't build any strings. The timings are also emitted as JFR events (see ZooKeeperOperationEvent
+ * and the events of the other modules), which only cost anything while a recording is enabled.
+ */
+public final class Metrics {
+
+    private static final MetricsSink NO_OP = new MetricsSink() {
+        @Override
+        public void count(String name, long amount) {
+        }
+
+        @Override
+        public void record(String name, long value) {
+        }
+    };
+
+    private static volatile MetricsSink sink = NO_OP;
+
+    private Metrics() {
+    }
+
+    // install the given sink (null to stop recording the metrics)
+    public static void setSink(MetricsSink metricsSink) {
+        sink = metricsSink != null ? metricsSink : NO_OP;
+    }
+
+    public static MetricsSink getSink() {
+        return sink;
+    }
+
+    public static void count(String name) {
+        sink.count(name, 1);
+    }
+
+    public static void count(String name, long amount) {
+        sink.count(name, amount);
+    }
+
+    public static void record(String name, long value) {
+        sink.record(name, value);
+    }
+
+    // record the latency (and the failure, if any) of a Zookeeper operation started at the given System.nanoTime()
+    public static void recordOperation(ZkOperation operation, String path, long startNanos, int resultCode) {
+        long durationNanos = System.nanoTime() - startNanos;
+        MetricsSink metricsSink = sink;
+        metricsSink.record(operation.latencyMetric, durationNanos);
+        if (resultCode != 0) {
+            metricsSink.count(operation.errorMetric, 1);
+        }
+
+        ZooKeeperOperationEvent event = new ZooKeeperOperationEvent();
+        if (event.shouldCommit()) {
+            event.operation = operation.name();
+            event.path = path;
+            event.resultCode = resultCode;
+            event.elapsed = durationNanos;
+            event.commit();
+        }
+    }
+
+    // the instrumented Zookeeper operations, along with the names of their metrics
+    public enum ZkOperation {
+        CREATE("zk.op.create"),
+        DELETE("zk.op.delete"),
+        EXISTS("zk.op.exists"),
+        GET_DATA("zk.op.getData"),
+        GET_CHILDREN("zk.op.getChildren"),
+        ADD_WATCH("zk.op.addWatch"),
+        SET_DATA("zk.op.setData"),
+        MULTI("zk.op.multi");
+
+        private final String latencyMetric; // histogram of the latencies (in nanos)
+        private final String errorMetric;   // counter of the failed operations
+
+        ZkOperation(String metric) {
+            this.latencyMetric = metric + ".latency";
+            this.errorMetric = metric + ".errors";
+        }
+
+        public String getLatencyMetric() {
+            return latencyMetric;
+        }
+
+        public String getErrorMetric() {
+            return errorMetric;
+        }
+    }
+}
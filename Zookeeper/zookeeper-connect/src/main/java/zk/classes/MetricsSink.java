@@ -0,0 +1,13 @@
+package zk.classes;
+
+// interface to export the metrics (e.g. to a monitoring system), see Metrics
+// Note: called on the hot paths (e.g. the Zookeeper event thread), hence the implementations must be cheap
+//       and must never block
+public interface MetricsSink {
+
+    // add the given amount to the given counter
+    void count(String name, long amount);
+
+    // record the given value (e.g. a latency in nanos, or a size) in the given histogram
+    void record(String name, long value);
+}
@@ -0,0 +1,87 @@
+package zk.classes;
+
+import org.apache.zookeeper.client.ConnectStringParser;
+import org.apache.zookeeper.client.HostProvider;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Host provider trying the observers of the ensemble before its voting members, so that the reads of the
+ * discovery clients are served by the observers (i.e. off the voting members) as long as one is reachable.
+ * <p>
+ * Both lists are shuffled (to spread the clients over the servers). Every (re)connection starts with the
+ * observers again, while the client sleeps for the given spin delay once it has tried all the servers in a row.
+ */
+public class ObserverFirstHostProvider implements HostProvider {
+    private final List<InetSocketAddress> servers = new ArrayList<>(); // the observers first
+    private int attempts = 0; // connection attempts since the latest connection, guarded by 'this'
+
+    // 'observers' and 'members' - comma separated host:port pairs (the observers may be empty)
+    public ObserverFirstHostProvider(String observers, String members) {
+        addShuffled(observers);
+        addShuffled(members);
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No Zookeeper server to connect to");
+        }
+    }
+
+    private void addShuffled(String connectString) {
+        if (connectString == null || connectString.isBlank()) {
+            return;
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>(new ConnectStringParser(connectString)
+                                                                    .getServerAddresses());
+        Collections.shuffle(addresses);
+        servers.addAll(addresses);
+    }
+
+    @Override
+    public synchronized int size() {
+        return servers.size();
+    }
+
+    @Override
+    public InetSocketAddress next(long spinDelay) {
+        InetSocketAddress server;
+        boolean triedAll;
+        synchronized (this) {
+            triedAll = attempts > 0 && attempts % servers.size() == 0;
+            server = servers.get(attempts % servers.size());
+            attempts++;
+        }
+        if (triedAll && spinDelay > 0) {
+            try {
+                Thread.sleep(spinDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return resolve(server);
+    }
+
+    @Override
+    public synchronized void onConnected() {
+        attempts = 0;
+    }
+
+    // the server list is static (the ensemble's reconfiguration isn't supported)
+    @Override
+    public boolean updateServerList(Collection<InetSocketAddress> serverAddresses, InetSocketAddress currentHost) {
+        return false;
+    }
+
+    // resolve the address on every attempt (the server may have moved), an unresolved one fails the attempt
+    private static InetSocketAddress resolve(InetSocketAddress address) {
+        try {
+            return new InetSocketAddress(InetAddress.getByName(address.getHostString()), address.getPort());
+        } catch (UnknownHostException e) {
+            return address;
+        }
+    }
+}
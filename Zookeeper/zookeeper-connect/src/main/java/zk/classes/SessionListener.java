@@ -0,0 +1,19 @@
+package zk.classes;
+
+import org.apache.zookeeper.ZooKeeper;
+
+// interface to define callbacks on Zookeeper session events (see ZKConnection)
+public interface SessionListener {
+
+    // called once a new session is established after the previous one has expired.
+    // All the ephemeral znodes and watches of the expired session are gone, hence the listener should
+    // switch to the given (new) Zookeeper client object and restore them.
+    // Note: called on the connection's background thread (never on the Zookeeper event thread)
+    void onSessionRecovered(ZooKeeper zooKeeper);
+
+    // called once the session has switched from a read-only server (see ZKConnection.forDiscovery()) to a server
+    // with quorum, i.e. the writes rejected while connected to the read-only server can be issued again.
+    // Note: called on the connection's background thread (never on the Zookeeper event thread)
+    default void onReadWriteRestored(ZooKeeper zooKeeper) {
+    }
+}
@@ -0,0 +1,24 @@
+package zk.classes;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR event of a Zookeeper session state transition (see ZKConnection)
+@Name("zk.SessionState")
+@Label("ZooKeeper Session State")
+@Category("ZooKeeper")
+@Description("Transition of the ZooKeeper session's state")
+class SessionStateEvent extends jdk.jfr.Event {
+    @Label("Connect String")
+    String connectString;
+
+    @Label("State")
+    String state;
+
+    @Label("Time In Previous State")
+    @Timespan(Timespan.NANOSECONDS)
+    long previousStateDuration;
+}
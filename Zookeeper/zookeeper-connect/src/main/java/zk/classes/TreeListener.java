@@ -0,0 +1,13 @@
+package zk.classes;
+
+import org.apache.zookeeper.Watcher;
+
+// interface to get notified of the changes to a znode and all of its descendants (see WatchManager.watchTree())
+public interface TreeListener {
+
+    // called once the znode at the given path (the watched znode or any of its descendants) has been created
+    // (NodeCreated), deleted (NodeDeleted) or its data has changed (NodeDataChanged).
+    // Note: called on a thread of the watch manager, a burst of changes to a znode may be notified only once
+    //       (with the latest type of change)
+    void onNodeChanged(String path, Watcher.Event.EventType type);
+}
@@ -0,0 +1,637 @@
+package zk.classes;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches many znodes (e.g. thousands of configuration or feature znodes) for many listeners, with a single
+ * Zookeeper watcher and a single table of the watched paths.
+ * <p>
+ * A path is subscribed with a typed listener: a DataListener (the znode's data, or its absence) or a
+ * ChildrenListener (the znode's children). A path is watched once whatever its number of listeners, and only the
+ * type of watch which has fired is set again, along with its read (e.g. a data change costs a single getData(),
+ * rather than an exists(), a getData() and a getChildren()). The watches to set again are collected for a short
+ * window and issued together (pipelined), so a burst of events on a path costs a single read.
+ * <p>
+ * The listeners are called on a bounded pool of threads, and the notifications of each subscription are collapsed:
+ * a listener slower than its notifications only gets the latest one (and only holds a single thread), hence it
+ * never stalls the other listeners. The delivery lag, the listeners' durations and the collapsed notifications
+ * are recorded (see Metrics) to find such listeners.
+ * <p>
+ * The watches are one-shot watches, or persistent watches (ZooKeeper 3.6+) which don't need to be set again.
+ * A whole subtree may also be watched (see watchTree()), with a single persistent recursive watch (a session has a
+ * single mode of watch per path on the server, hence the data and children of such a path are watched by one-shot
+ * watches).
+ * All the watches are set again on a new session (see ZKConnection).
+ * <p>
+ * Once a path isn't subscribed to anymore, its watches are removed from the server with removeAllWatches() (a
+ * server keeps a single watch per session and path, whatever the number of the client's watchers), hence the paths
+ * watched by the manager must not be watched by other watchers of the same session. The watches are removed on the
+ * same thread which sets them, hence a path subscribed to again in the meantime keeps its watches.
+ */
+public class WatchManager implements Watcher, SessionListener {
+    private static final Logger logger = Logger.getLogger(WatchManager.class);
+
+    // types of watch (a bit mask)
+    private static final int DATA = 1;
+    private static final int CHILDREN = 2;
+    private static final int TREE = 4;
+
+    private static final int DEFAULT_LISTENER_THREADS = 2;
+    private static final long REARM_DEBOUNCE_MILLIS = 5;
+    private static final long REARM_MAX_DELAY_MILLIS = 50;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long SLOW_LISTENER_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // metrics (see Metrics)
+    static final String EVENTS_METRIC = "watch.events";
+    static final String REARM_BATCH_METRIC = "watch.rearm.batch";
+    static final String DELIVERY_LAG_METRIC = "watch.delivery.lag";
+    static final String LISTENER_DURATION_METRIC = "watch.listener.duration";
+    static final String SLOW_LISTENERS_METRIC = "watch.listener.slow";
+    static final String COLLAPSED_METRIC = "watch.notifications.collapsed";
+
+    private volatile ZooKeeper zooKeeper; // replaced by a new one once the session has expired
+    private volatile boolean persistentWatches;
+    private final Map<String, PathWatch> watches = new ConcurrentHashMap<>(); // path -> its watch
+    private final Map<String, Integer> pendingRearms = new ConcurrentHashMap<>(); // path -> types of watch to set
+    // path -> types of watch unsubscribed from (removed along with the pending rearms, unless subscribed to again)
+    private final Map<String, Integer> pendingRemovals = new ConcurrentHashMap<>();
+    private final Watcher treeWatcher = this::processTreeEvent; // the persistent recursive watches' watcher
+    private final EventDispatcher rearmDispatcher; // sets the watches again (in batches)
+    private final EventDispatcher listenerDispatcher; // calls the listeners (collapsed per subscription)
+    private final AtomicLong nextSubscriptionId = new AtomicLong();
+    private volatile boolean closed = false;
+
+    public WatchManager(ZooKeeper zooKeeper) {
+        this(zooKeeper, DEFAULT_LISTENER_THREADS, false);
+    }
+
+    // 'listenerThreads' - number of threads calling the listeners
+    // 'persistentWatches' - watch each path with a persistent watch rather than with one-shot watches
+    //                       (falls back to the one-shot watches if the server doesn't support persistent watches)
+    public WatchManager(ZooKeeper zooKeeper, int listenerThreads, boolean persistentWatches) {
+        this.zooKeeper = zooKeeper;
+        this.persistentWatches = persistentWatches;
+        this.rearmDispatcher = new EventDispatcher("watch-manager", 1, REARM_DEBOUNCE_MILLIS, REARM_MAX_DELAY_MILLIS);
+        this.listenerDispatcher = new EventDispatcher("watch-listener", listenerThreads, 0, 0);
+    }
+
+    // get notified of the data of the given znode: right away with its current data, and on every change
+    public Subscription watchData(String path, DataListener listener) {
+        return subscribe(new Subscription(path, DATA, listener, null));
+    }
+
+    // get notified of the children of the given znode: right away with its current children, and on every change
+    public Subscription watchChildren(String path, ChildrenListener listener) {
+        return subscribe(new Subscription(path, CHILDREN, null, listener));
+    }
+
+    // get notified of the creation, deletion and data changes of the given znode and all its descendants, with a
+    // single persistent recursive watch (ZooKeeper 3.6+, whatever the 'persistentWatches' setting).
+    // Unlike the other subscriptions, it isn't notified of the current state, and the changes made while the
+    // session was expired are not notified.
+    public Subscription watchTree(String path, TreeListener listener) {
+        return subscribe(new Subscription(path, TREE, listener));
+    }
+
+    private Subscription subscribe(Subscription subscription) {
+        boolean[] first = new boolean[1];
+        PathWatch watch = watches.compute(subscription.path, (path, current) -> {
+            PathWatch pathWatch = current != null ? current : new PathWatch(path);
+            first[0] = pathWatch.add(subscription);
+            return pathWatch;
+        });
+        if (first[0]) {
+            requestRearm(subscription.path, subscription.type); // the first subscription of its type sets the watch
+        } else {
+            // notified right away, if the current state has been read already (or else once it's read)
+            Object state = subscription.type == DATA ? watch.dataState
+                           : subscription.type == CHILDREN ? watch.childrenState : null;
+            if (state != null) {
+                subscription.notify(state);
+            }
+        }
+        return subscription;
+    }
+
+    // the watches are removed on the rearm dispatcher's thread (see removePending()), i.e. in order with the
+    // watches set for a subscription to the same path in the meantime
+    private void unsubscribe(Subscription subscription) {
+        watches.computeIfPresent(subscription.path, (path, current) -> {
+            current.subscriptions.remove(subscription);
+            return current.subscriptions.isEmpty() ? null : current;
+        });
+        if (closed) {
+            return;
+        }
+        pendingRemovals.merge(subscription.path, subscription.type, (current, removed) -> current | removed);
+        rearmDispatcher.dispatch("rearm", this::rearmPending);
+    }
+
+    // stop watching all the paths (the listeners are not called anymore)
+    public void close() {
+        closed = true;
+        for (String path : watches.keySet()) {
+            removeWatches(path);
+        }
+        watches.clear();
+        rearmDispatcher.shutdown();
+        listenerDispatcher.shutdown();
+    }
+
+    // remove the watches of the paths which aren't subscribed to anymore. A path's one-shot watch of a type which
+    // is still subscribed to along with the other type, is simply not set again once it fires. A recursive watch
+    // can only be removed along with the path's other watches, hence these are then set again
+    private void removePending() {
+        for (String path : new ArrayList<>(pendingRemovals.keySet())) {
+            Integer types = pendingRemovals.remove(path);
+            if (types == null) {
+                continue;
+            }
+            PathWatch watch = watches.get(path);
+            if (watch == null) {
+                removeWatches(path);
+                continue;
+            }
+            int subscribed = watch.subscribedTypes();
+            if ((types & TREE) != 0 && (subscribed & TREE) == 0 && watch.recursiveWatchSet) {
+                removeWatches(path);
+                watch.recursiveWatchSet = false;
+                watch.persistentWatchSet = false;
+                pendingRearms.merge(path, subscribed, (current, added) -> current | added);
+            }
+        }
+    }
+
+    // remove all the watches of the path from the server (or only the manager's ones locally if the connection is
+    // lost, i.e. they stay on the server until they fire or the session ends)
+    private void removeWatches(String path) {
+        zooKeeper.removeAllWatches(path, WatcherType.Any, false, (rc, removedPath, ctx) -> {
+            if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                for (Watcher watcher : new Watcher[]{this, treeWatcher}) {
+                    zooKeeper.removeWatches(path, watcher, WatcherType.Any, true, (localRc, localPath, localCtx) -> {
+                    }, null);
+                }
+            }
+        }, null);
+    }
+
+    // set the watches of the given types again (along with their reads), collapsed with the other pending ones
+    private void requestRearm(String path, int types) {
+        if (closed) {
+            return;
+        }
+        pendingRearms.merge(path, types, (current, added) -> current | added);
+        rearmDispatcher.dispatch("rearm", this::rearmPending);
+    }
+
+    private void rearmPending() {
+        removePending(); // issued before the watches are set again, i.e. never removes them
+        int batch = 0;
+        for (String path : new ArrayList<>(pendingRearms.keySet())) {
+            Integer types = pendingRearms.remove(path);
+            PathWatch watch = watches.get(path);
+            if (types == null || watch == null) {
+                continue; // unsubscribed in the meantime
+            }
+            types &= watch.subscribedTypes();
+            if (types == 0) {
+                continue;
+            }
+            batch++;
+            if ((types & TREE) != 0 && !watch.recursiveWatchSet) {
+                addRecursiveWatch(watch);
+                if (watch.persistentWatchSet) {
+                    // the recursive watch replaces the persistent one on the server (it doesn't report the
+                    // children changes), hence the data and children are watched by one-shot watches from now on
+                    watch.persistentWatchSet = false;
+                    types |= watch.subscribedTypes() & (DATA | CHILDREN);
+                }
+            }
+            boolean persistent = isWatchedPersistently(watch);
+            if (persistent && !watch.persistentWatchSet && (types & (DATA | CHILDREN)) != 0) {
+                addPersistentWatch(watch); // issued before the reads, hence no change is missed in between
+            }
+            if ((types & DATA) != 0) {
+                readData(watch, persistent);
+            }
+            if ((types & CHILDREN) != 0) {
+                readChildren(watch, persistent);
+            }
+        }
+        if (batch > 0) {
+            Metrics.record(REARM_BATCH_METRIC, batch);
+        }
+    }
+
+    // whether the path's data and children are watched by a persistent watch (rather than by one-shot watches)
+    private boolean isWatchedPersistently(PathWatch watch) {
+        return persistentWatches && (watch.subscribedTypes() & TREE) == 0;
+    }
+
+    // the watcher to set along with a read (none if the path is watched persistently)
+    private Watcher readWatcher(boolean persistent) {
+        return persistent ? null : this;
+    }
+
+    private void addPersistentWatch(PathWatch watch) {
+        watch.persistentWatchSet = true;
+        long startNanos = System.nanoTime();
+        zooKeeper.addWatch(watch.path, this, AddWatchMode.PERSISTENT, (rc, path, ctx) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.ADD_WATCH, path, startNanos, rc);
+            if (rc == KeeperException.Code.UNIMPLEMENTED.intValue()) {
+                // older servers (before 3.6) don't support persistent watches
+                if (persistentWatches) {
+                    logger.warn("Persistent watches are not supported by the server, using one-shot watches instead");
+                    persistentWatches = false;
+                    rearmAll();
+                }
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                watch.persistentWatchSet = false;
+                failed(path, watch.subscribedTypes(), rc);
+            }
+        }, null);
+    }
+
+    private void addRecursiveWatch(PathWatch watch) {
+        watch.recursiveWatchSet = true;
+        long startNanos = System.nanoTime();
+        zooKeeper.addWatch(watch.path, treeWatcher, AddWatchMode.PERSISTENT_RECURSIVE, (rc, path, ctx) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.ADD_WATCH, path, startNanos, rc);
+            if (rc == KeeperException.Code.UNIMPLEMENTED.intValue()) {
+                // older servers (before 3.6) don't support persistent watches, and a tree can't be watched otherwise
+                logger.error("Persistent watches are not supported by the server, not watching the tree " + path);
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                watch.recursiveWatchSet = false;
+                failed(path, TREE, rc);
+            }
+        }, null);
+    }
+
+    private void readData(PathWatch watch, boolean persistent) {
+        long startNanos = System.nanoTime();
+        zooKeeper.getData(watch.path, readWatcher(persistent), (rc, path, ctx, data, stat) -> {
+            boolean missing = rc == KeeperException.Code.NONODE.intValue();
+            Metrics.recordOperation(Metrics.ZkOperation.GET_DATA, path, startNanos,
+                                    missing ? KeeperException.Code.OK.intValue() : rc);
+            if (rc == KeeperException.Code.OK.intValue()) {
+                watch.dataRead(data, stat);
+            } else if (missing) {
+                watchCreation(watch, DATA, persistent);
+                watch.dataRead(null, null);
+            } else {
+                failed(path, DATA, rc);
+            }
+        }, null);
+    }
+
+    private void readChildren(PathWatch watch, boolean persistent) {
+        long startNanos = System.nanoTime();
+        zooKeeper.getChildren(watch.path, readWatcher(persistent), (rc, path, ctx, children, stat) -> {
+            boolean missing = rc == KeeperException.Code.NONODE.intValue();
+            Metrics.recordOperation(Metrics.ZkOperation.GET_CHILDREN, path, startNanos,
+                                    missing ? KeeperException.Code.OK.intValue() : rc);
+            if (rc == KeeperException.Code.OK.intValue()) {
+                watch.childrenRead(children, stat);
+            } else if (missing) {
+                watchCreation(watch, CHILDREN, persistent);
+                watch.childrenRead(null, null);
+            } else {
+                failed(path, CHILDREN, rc);
+            }
+        }, null);
+    }
+
+    // a read of a missing znode doesn't set a watch (unlike exists()), a persistent watch reports the creation though
+    private void watchCreation(PathWatch watch, int type, boolean persistent) {
+        if (persistent) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        zooKeeper.exists(watch.path, this, (rc, path, ctx, stat) -> {
+            Metrics.recordOperation(Metrics.ZkOperation.EXISTS, path, startNanos, rc);
+            if (rc == KeeperException.Code.OK.intValue()) {
+                requestRearm(path, type); // created in the meantime
+            } else if (rc != KeeperException.Code.NONODE.intValue()) {
+                failed(path, type, rc);
+            }
+        }, null);
+    }
+
+    // the watch hasn't been set: retry once reconnected (an expired session sets all the watches again)
+    private void failed(String path, int types, int rc) {
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if (code == KeeperException.Code.SESSIONEXPIRED || closed) {
+            return;
+        }
+        if (code != KeeperException.Code.CONNECTIONLOSS && code != KeeperException.Code.OPERATIONTIMEOUT) {
+            logger.warn("Failed to watch " + path + ": " + code);
+        }
+        rearmDispatcher.schedule(() -> requestRearm(path, types), RETRY_MILLIS);
+    }
+
+    private void rearmAll() {
+        for (PathWatch watch : watches.values()) {
+            watch.persistentWatchSet = false;
+            watch.recursiveWatchSet = false;
+            requestRearm(watch.path, watch.subscribedTypes());
+        }
+    }
+
+    // the watches are gone along with the expired session, set them all again (only the changes are notified)
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zooKeeper = zooKeeper;
+        rearmAll();
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (closed || event.getPath() == null) {
+            return; // e.g. a connection event
+        }
+        PathWatch watch = watches.get(event.getPath());
+        if (watch == null) {
+            return; // not subscribed anymore
+        }
+        int types;
+        switch (event.getType()) {
+            case NodeDataChanged:
+                types = DATA;
+                break;
+            case NodeChildrenChanged:
+                types = CHILDREN;
+                break;
+            case NodeCreated:
+            case NodeDeleted:
+                types = DATA | CHILDREN;
+                break;
+            default:
+                return; // e.g. a removed watch
+        }
+        Metrics.count(EVENTS_METRIC);
+        requestRearm(watch.path, types);
+    }
+
+    // an event of a persistent recursive watch: notify the tree subscriptions of the changed znode and its ancestors
+    private void processTreeEvent(WatchedEvent event) {
+        String changedPath = event.getPath();
+        if (closed || changedPath == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case NodeCreated:
+            case NodeDeleted:
+            case NodeDataChanged:
+                break;
+            default:
+                return; // e.g. a removed watch
+        }
+        Metrics.count(EVENTS_METRIC);
+        TreeChange change = new TreeChange(changedPath, event.getType());
+        String path = changedPath;
+        while (true) {
+            PathWatch watch = watches.get(path);
+            if (watch != null) {
+                for (Subscription subscription : watch.subscriptions) {
+                    if (subscription.type == TREE) {
+                        subscription.notify(change);
+                    }
+                }
+            }
+            if (path.equals("/")) {
+                break;
+            }
+            int slash = path.lastIndexOf('/');
+            path = slash > 0 ? path.substring(0, slash) : "/";
+        }
+    }
+
+    // a subscription to a path's data or children, until it's closed
+    public final class Subscription {
+        private final String path;
+        private final int type;
+        private final DataListener dataListener;
+        private final ChildrenListener childrenListener;
+        private final TreeListener treeListener;
+        private final String key; // key of its notifications on the listener dispatcher
+        // latest state not notified yet (null if none) and since when a notification is pending, guarded by 'this'
+        private Object pendingState;
+        private long pendingSinceNanos;
+        // latest change of each znode not notified yet (tree subscriptions only), guarded by 'this'
+        private final Map<String, Watcher.Event.EventType> pendingChanges = new LinkedHashMap<>();
+        private boolean closed = false;
+
+        private Subscription(String path, int type, DataListener dataListener, ChildrenListener childrenListener) {
+            this(path, type, dataListener, childrenListener, null);
+        }
+
+        private Subscription(String path, int type, TreeListener treeListener) {
+            this(path, type, null, null, treeListener);
+        }
+
+        private Subscription(String path, int type, DataListener dataListener, ChildrenListener childrenListener,
+                             TreeListener treeListener) {
+            this.path = path;
+            this.type = type;
+            this.dataListener = dataListener;
+            this.childrenListener = childrenListener;
+            this.treeListener = treeListener;
+            this.key = "subscription-" + nextSubscriptionId.incrementAndGet();
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        // stop getting notified (a notification in progress may still be delivered)
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pendingState = null;
+                pendingChanges.clear();
+            }
+            unsubscribe(this);
+        }
+
+        private void notify(Object state) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (pendingState == null && pendingChanges.isEmpty()) {
+                    pendingSinceNanos = System.nanoTime();
+                } else if (pendingState != null || (state instanceof TreeChange change
+                                                    && pendingChanges.containsKey(change.path))) {
+                    Metrics.count(COLLAPSED_METRIC); // the listener hasn't got the previous one yet
+                }
+                if (state instanceof TreeChange change) {
+                    pendingChanges.remove(change.path); // moved to the end (i.e. in the order of the latest changes)
+                    pendingChanges.put(change.path, change.type);
+                } else {
+                    pendingState = state;
+                }
+            }
+            listenerDispatcher.dispatch(key, this::deliver);
+        }
+
+        private void deliver() {
+            Object state;
+            List<Map.Entry<String, Watcher.Event.EventType>> changes;
+            long sinceNanos;
+            synchronized (this) {
+                state = pendingState;
+                changes = new ArrayList<>(pendingChanges.entrySet());
+                sinceNanos = pendingSinceNanos;
+                pendingState = null;
+                pendingChanges.clear();
+            }
+            if (state == null && changes.isEmpty()) {
+                return;
+            }
+            long startNanos = System.nanoTime();
+            Metrics.record(DELIVERY_LAG_METRIC, startNanos - sinceNanos);
+            try {
+                if (state instanceof DataState dataState) {
+                    dataListener.onDataChanged(path, dataState.data, dataState.stat);
+                } else if (state != null) {
+                    childrenListener.onChildrenChanged(path, ((ChildrenState) state).children);
+                }
+                for (Map.Entry<String, Watcher.Event.EventType> change : changes) {
+                    treeListener.onNodeChanged(change.getKey(), change.getValue());
+                }
+            } catch (RuntimeException e) {
+                logger.error("Listener of " + path + " failed", e);
+            }
+            long durationNanos = System.nanoTime() - startNanos;
+            Metrics.record(LISTENER_DURATION_METRIC, durationNanos);
+            if (durationNanos > SLOW_LISTENER_NANOS) {
+                Metrics.count(SLOW_LISTENERS_METRIC);
+                logger.warn("Slow listener of " + path + ": " + TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms");
+            }
+        }
+    }
+
+    // the subscriptions to a path, along with its latest read state
+    private static final class PathWatch {
+        private final String path;
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private volatile boolean persistentWatchSet = false;
+        private volatile boolean recursiveWatchSet = false;
+        // latest data and children read (null until read), only updated on the Zookeeper event thread
+        private volatile DataState dataState;
+        private volatile ChildrenState childrenState;
+
+        PathWatch(String path) {
+            this.path = path;
+        }
+
+        int subscribedTypes() {
+            int types = 0;
+            for (Subscription subscription : subscriptions) {
+                types |= subscription.type;
+            }
+            return types;
+        }
+
+        // returns - whether it's the first subscription of its type (i.e. the watch of its type must be set)
+        // Note: called atomically for the path (see subscribe())
+        boolean add(Subscription subscription) {
+            boolean first = (subscribedTypes() & subscription.type) == 0;
+            if (first) {
+                // the state isn't watched (i.e. up to date) anymore since the previous subscriptions of its type
+                if (subscription.type == DATA) {
+                    dataState = null;
+                } else if (subscription.type == CHILDREN) {
+                    childrenState = null;
+                }
+            }
+            subscriptions.add(subscription);
+            return first;
+        }
+
+        void dataRead(byte[] data, Stat stat) {
+            long zxid = stat != null ? stat.getMzxid() : 0;
+            DataState current = dataState;
+            if (current != null && current.zxid == zxid) {
+                return; // nothing has changed (e.g. the watch has been set again on a new session)
+            }
+            DataState state = new DataState(data, stat, zxid);
+            dataState = state;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.type == DATA) {
+                    subscription.notify(state);
+                }
+            }
+        }
+
+        void childrenRead(List<String> children, Stat stat) {
+            long zxid = stat != null ? stat.getPzxid() : 0;
+            ChildrenState current = childrenState;
+            if (current != null && current.zxid == zxid) {
+                return;
+            }
+            ChildrenState state = new ChildrenState(children != null ? Collections.unmodifiableList(children) : null,
+                                                    zxid);
+            childrenState = state;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.type == CHILDREN) {
+                    subscription.notify(state);
+                }
+            }
+        }
+    }
+
+    // data of a znode (null if it doesn't exist), along with the zxid of its latest change (0 if it doesn't exist)
+    private static final class DataState {
+        private final byte[] data;
+        private final Stat stat;
+        private final long zxid;
+
+        DataState(byte[] data, Stat stat, long zxid) {
+            this.data = data;
+            this.stat = stat;
+            this.zxid = zxid;
+        }
+    }
+
+    // change of a znode notified by a persistent recursive watch
+    private static final class TreeChange {
+        private final String path;
+        private final Watcher.Event.EventType type;
+
+        TreeChange(String path, Watcher.Event.EventType type) {
+            this.path = path;
+            this.type = type;
+        }
+    }
+
+    // children of a znode (null if it doesn't exist), along with the zxid of their latest change
+    private static final class ChildrenState {
+        private final List<String> children;
+        private final long zxid;
+
+        ChildrenState(List<String> children, long zxid) {
+            this.children = children;
+            this.zxid = zxid;
+        }
+    }
+}
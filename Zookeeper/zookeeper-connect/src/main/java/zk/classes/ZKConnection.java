@@ -1,44 +1,356 @@
 package zk.classes;
 
+import org.apache.log4j.Logger;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Helper class to maintain establish connection to the Zookeeper
+ * <p>
+ * It also manages the Zookeeper session: a disconnection is left to the Zookeeper client (which reconnects
+ * within the session timeout by itself), while an expired session is replaced by a new one, retrying with
+ * an exponential backoff until the connection is established. The registered session listeners are then
+ * called to restore their ephemeral znodes and watches.
+ * <p>
+ * A discovery client (see forDiscovery()) may also connect to a read-only server, i.e. a server partitioned
+ * from the ensemble's quorum: it keeps serving the reads, while the writes (e.g. a registration or an election)
+ * wait for the quorum, until the session listeners are notified that the writes are accepted again.
+ * The servers must run with 'readonlymode.enabled' and 'localSessionsEnabled' (a read-only server only creates
+ * local sessions, and only takes over a local one). A discovery client holding a global session which can't reach
+ * a server with quorum within the session timeout thus gives up its session and starts a new one (as if it had expired).
  */
 public class ZKConnection implements Watcher {
+    private static final Logger logger = Logger.getLogger(ZKConnection.class);
 
     private static final String ZK_ADDRESS = "localhost:2181";
     private static final int TIME_OUT = 3000; // server time out in milli secs
-    private ZooKeeper zookeeper;
+    private static final long INITIAL_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final String SESSION_RECOVERY_METRIC = "zk.session.recovery.duration";
+    // counter of the transitions to each session state
+    private static final Map<Event.KeeperState, String> SESSION_STATE_METRICS = new EnumMap<>(Event.KeeperState.class);
+    static {
+        for (Event.KeeperState state : Event.KeeperState.values()) {
+            SESSION_STATE_METRICS.put(state, "zk.session.state." + state.name());
+        }
+    }
+
+    private final String connectString;
+    private final int sessionTimeout;
+    private final boolean canBeReadOnly;
+    private final String observers; // observers to connect to first (null if none)
+    private final List<SessionListener> sessionListeners = new CopyOnWriteArrayList<>();
+    private final EventDispatcher dispatcher = new EventDispatcher("zk-session"); // runs the reconnections
+    private volatile ZooKeeper zookeeper;
+    private volatile int generation = 0; // incremented for every new Zookeeper client object
+    private long stateSinceNanos = System.nanoTime(); // when the session entered its current state
+    private boolean connected = false; // guarded by 'this'
+    private boolean readOnly = false;  // connected to a read-only server, guarded by 'this'
+    private boolean closed = false;    // guarded by 'this'
+
+    public ZKConnection() {
+        this(ZK_ADDRESS, TIME_OUT);
+    }
+
+    // 'connectString' - comma separated host:port pairs of the Zookeeper servers
+    // 'sessionTimeout' - session time out in milli secs
+    public ZKConnection(String connectString, int sessionTimeout) {
+        this(connectString, sessionTimeout, false, null);
+    }
+
+    private ZKConnection(String connectString, int sessionTimeout, boolean canBeReadOnly, String observers) {
+        this.connectString = connectString;
+        this.sessionTimeout = sessionTimeout;
+        this.canBeReadOnly = canBeReadOnly;
+        this.observers = observers;
+    }
 
-    public ZooKeeper getConnection() throws IOException {
+    // connection of a discovery client (e.g. of a ServiceRegistry which only reads the addresses): it connects
+    // to a read-only server if the ensemble has lost its quorum, and to the given observers before the voting
+    // members of 'connectString', to move the read fan-out off the voting members.
+    // 'observers' - comma separated host:port pairs of the ensemble's observers (null or empty if none)
+    public static ZKConnection forDiscovery(String connectString, String observers, int sessionTimeout) {
+        return new ZKConnection(connectString, sessionTimeout, true, observers);
+    }
+
+    // returns the current Zookeeper client object (connecting to the server in the background, if not connected yet)
+    // Note: the client object is replaced by a new one if the session expires
+    public synchronized ZooKeeper getConnection() throws IOException {
         if (zookeeper == null) {
-            zookeeper = new ZooKeeper(ZK_ADDRESS, TIME_OUT, this);
+            zookeeper = createClient();
         }
         return zookeeper;
     }
 
+    // Note: must be called with the lock held
+    private ZooKeeper createClient() throws IOException {
+        Watcher watcher = new SessionWatcher(generation);
+        if (!canBeReadOnly) {
+            return new ZooKeeper(connectString, sessionTimeout, watcher);
+        }
+        return new ZooKeeper(connectString, sessionTimeout, watcher, true,
+                             new ObserverFirstHostProvider(observers, connectString));
+    }
+
+    // connect to the server and wait until the session is established
+    // throws - IOException if the session is not established within the given time
+    public ZooKeeper connect(long timeoutMillis) throws IOException, InterruptedException {
+        ZooKeeper zooKeeper = getConnection();
+        if (!awaitConnected(timeoutMillis)) {
+            throw new IOException("Could not connect to Zookeeper (" + connectString + ") within "
+                                  + timeoutMillis + " ms");
+        }
+        return zooKeeper;
+    }
+
+    // wait until connected to the server
+    // returns - false if not connected within the given time (or if the connection is closed)
+    public synchronized boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!connected && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return connected;
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    // whether connected to a read-only server (i.e. the writes are rejected until the quorum is restored)
+    public synchronized boolean isReadOnly() {
+        return connected && readOnly;
+    }
+
+    // wait until connected to a server which accepts the writes (i.e. a server with quorum)
+    // returns - false if not connected within the given time (or if the connection is closed)
+    public synchronized boolean awaitWritable(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while ((!connected || readOnly) && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return connected && !readOnly;
+    }
+
+    public void addSessionListener(SessionListener listener) {
+        sessionListeners.add(listener);
+    }
+
+    public void removeSessionListener(SessionListener listener) {
+        sessionListeners.remove(listener);
+    }
+
+    // close the session (and stop reconnecting)
+    public void close() throws InterruptedException {
+        ZooKeeper current;
+        synchronized (this) {
+            closed = true;
+            connected = false;
+            current = zookeeper;
+            notifyAll();
+        }
+        dispatcher.shutdown();
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    // wait until the connection is closed (i.e. the application should exit)
+    public synchronized void waitUntilClosed() throws InterruptedException {
+        while (!closed) {
+            wait();
+        }
+    }
+
+    // Connection's default watcher (for the events of the current Zookeeper client object)
     // process executes on a separate event thread
     @Override
     public void process(WatchedEvent event) {
         switch (event.getType()) {
             case None:
-                if (event.getState() == Event.KeeperState.SyncConnected) {// event of successful connection to zookeeper server
-                    System.out.println("-------------------------------------");
-                    System.out.println("Successfully connected to Zookeeper!");
-                    System.out.println("-------------------------------------");
+                recordSessionState(event.getState());
+                switch (event.getState()) {
+                    case SyncConnected:
+                        // event of successful connection to zookeeper server
+                        if (setConnected(true, false)) {
+                            // the writes waiting for the quorum can be issued again
+                            dispatcher.execute(this::notifyReadWriteRestored);
+                        }
+                        logger.info("Connected to Zookeeper");
+                        break;
+                    case ConnectedReadOnly:
+                        // the server has lost the quorum, the client switches to a server with quorum by itself
+                        setConnected(true, true);
+                        logger.warn("Connected to a read-only Zookeeper server");
+                        break;
+                    case Disconnected:
+                        // the client reconnects by itself (within the session timeout)
+                        setConnected(false);
+                        if (canBeReadOnly) {
+                            int disconnectedGeneration = generation;
+                            dispatcher.schedule(() -> fallBackToReadOnly(disconnectedGeneration), sessionTimeout);
+                        }
+                        logger.warn("Disconnected from Zookeeper, reconnecting...");
+                        break;
+                    case Expired:
+                        setConnected(false);
+                        logger.warn("Zookeeper session expired, starting a new session...");
+                        dispatcher.execute(this::recoverSession);
+                        break;
+                    case AuthFailed:
+                    case Closed:
+                        synchronized (this) {
+                            connected = false;
+                            if (event.getState() == Event.KeeperState.AuthFailed) {
+                                closed = true;
+                            }
+                            notifyAll();
+                        }
+                        logger.info("Zookeeper session closed (" + event.getState() + ")");
+                        break;
                 }
-                else {
-                    synchronized (zookeeper) {
-                        System.out.println("-------------------------------------");
-                        System.out.println("Disconnection from Zookeeper event!");
-                        System.out.println("-------------------------------------");
-                        zookeeper.notifyAll(); // notify all the waiting threads to wake up (i.e. main thread in this case)
-                    }
+        }
+    }
+
+    private void recordSessionState(Event.KeeperState state) {
+        long now = System.nanoTime();
+        long previousStateNanos = now - stateSinceNanos;
+        stateSinceNanos = now;
+        Metrics.count(SESSION_STATE_METRICS.get(state));
+
+        SessionStateEvent event = new SessionStateEvent();
+        if (event.shouldCommit()) {
+            event.connectString = connectString;
+            event.state = state.name();
+            event.previousStateDuration = previousStateNanos;
+            event.commit();
+        }
+    }
+
+    private synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+        notifyAll();
+    }
+
+    // returns - whether the connection has switched from a read-only server to a server with quorum
+    private synchronized boolean setConnected(boolean connected, boolean readOnly) {
+        boolean readWriteRestored = this.readOnly && !readOnly;
+        this.connected = connected;
+        this.readOnly = readOnly;
+        notifyAll();
+        return readWriteRestored;
+    }
+
+    private void notifyReadWriteRestored() {
+        ZooKeeper current = zookeeper;
+        for (SessionListener listener : sessionListeners) {
+            try {
+                listener.onReadWriteRestored(current);
+            } catch (RuntimeException e) {
+                logger.error("Session listener failed to resume its writes", e);
+            }
+        }
+    }
+
+    // start a new session (which a read-only server accepts) if the client hasn't reconnected in the meantime
+    private void fallBackToReadOnly(int disconnectedGeneration) {
+        synchronized (this) {
+            if (connected || closed || generation != disconnectedGeneration) {
+                return;
+            }
+        }
+        logger.warn("No Zookeeper server reachable within " + sessionTimeout
+                    + " ms, starting a new session (served by a read-only server if the quorum is lost)");
+        recoverSession();
+    }
+
+    // replace the expired session with a new one (retrying with an exponential backoff), and let the
+    // session listeners restore their state
+    private void recoverSession() {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        long recoveryStart = System.nanoTime();
+        ZooKeeper expired = zookeeper;
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return;
                 }
+            }
+            long start = System.nanoTime();
+            try {
+                synchronized (this) {
+                    generation++; // ignore the events of the expired client object from now on
+                }
+                expired.close();
+                synchronized (this) {
+                    zookeeper = createClient();
+                }
+                if (awaitConnected(sessionTimeout)) {
+                    long recoveryNanos = System.nanoTime() - recoveryStart;
+                    Metrics.record(SESSION_RECOVERY_METRIC, recoveryNanos);
+                    logger.info("New Zookeeper session established in "
+                                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms (recovered in "
+                                + TimeUnit.NANOSECONDS.toMillis(recoveryNanos) + " ms)");
+                    break;
+                }
+                expired = zookeeper; // not connected in time, close it and try again
+            } catch (IOException e) {
+                logger.warn("Failed to create a new Zookeeper session: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                // exponential backoff with jitter (to not reconnect all the clients at once)
+                Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+
+        ZooKeeper recovered = zookeeper;
+        for (SessionListener listener : sessionListeners) {
+            try {
+                listener.onSessionRecovered(recovered);
+            } catch (RuntimeException e) {
+                logger.error("Session listener failed to recover its state", e);
+            }
+        }
+    }
+
+    // forwards the events of a Zookeeper client object to the connection, as long as it's the current one
+    // (so that the late events of an expired client are ignored)
+    private class SessionWatcher implements Watcher {
+        private final int generation;
+
+        private SessionWatcher(int generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (generation == ZKConnection.this.generation) {
+                ZKConnection.this.process(event);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,30 @@
+package zk.classes;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+// helpers for the CompletableFuture based (non-blocking) APIs built on the Zookeeper callbacks
+public final class ZkFutures {
+
+    private ZkFutures() {
+    }
+
+    // returns a future completed as the given one, but on a thread of the common pool rather than on the thread
+    // completing the given one (i.e. the Zookeeper event thread): the dependent stages may then block (e.g. call a
+    // synchronous Zookeeper method, or wait for another future) without blocking the delivery of all the events
+    public static <T> CompletableFuture<T> offEventThread(CompletableFuture<T> future) {
+        return future.thenApplyAsync(Function.identity());
+    }
+
+    // complete the given future with the result of a Zookeeper callback: the given value if the result code is OK,
+    // or else a KeeperException of the result code (for the given path)
+    public static <T> void complete(CompletableFuture<T> future, int resultCode, String path, T value) {
+        if (resultCode == KeeperException.Code.OK.intValue()) {
+            future.complete(value);
+        } else {
+            future.completeExceptionally(KeeperException.create(KeeperException.Code.get(resultCode), path));
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package zk.classes;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of znodes' data and children (e.g. of configuration znodes read over and over), so that a
+ * read costs a Zookeeper round trip only once per change of the znode.
+ * <p>
+ * Every read sets a (one-shot) watch on the znode, which invalidates its cached entry once the znode changes,
+ * i.e. the cache is as up-to-date as the watches are (see Watcher), and it's emptied once the session expires.
+ * Concurrent misses of the same entry are collapsed into a single read of the znode.
+ * <p>
+ * The cache is bounded by the (approximate) number of bytes of its entries. The least recently used entry is
+ * evicted to make room for a new one, unless the new one has been read less frequently than it (a TinyLFU
+ * admission filter, which keeps a burst of one-off reads from flushing the frequently read entries), in which case
+ * the new one is not cached.
+ * Note: the watch of an evicted entry stays set until it fires (removing it could race with a new read of the znode).
+ * <p>
+ * The hits, misses, evictions and invalidations are counted (see the getters), along with the durations of the
+ * loads and the entries not admitted (see Metrics).
+ */
+public class ZnodeCache implements Watcher, SessionListener {
+    private static final Logger logger = Logger.getLogger(ZnodeCache.class);
+
+    private static final String DATA_KEY = "d";
+    private static final String CHILDREN_KEY = "c";
+    private static final int ENTRY_OVERHEAD_BYTES = 64; // approximate size of an entry besides its path and content
+    private static final int AVERAGE_ENTRY_BYTES = 256; // to size the frequency sketch
+    // metrics (see Metrics)
+    static final String HITS_METRIC = "cache.hits";
+    static final String MISSES_METRIC = "cache.misses";
+    static final String LOAD_DURATION_METRIC = "cache.load.duration";
+    static final String EVICTIONS_METRIC = "cache.evictions";
+    static final String REJECTIONS_METRIC = "cache.rejections";
+    static final String INVALIDATIONS_METRIC = "cache.invalidations";
+
+    private volatile ZooKeeper zooKeeper; // replaced by a new one once the session has expired
+    private final long maximumBytes;
+    // the cached entries in access order (least recently used first), guarded by 'this'
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0; // total size of the cached entries, guarded by 'this'
+    private final FrequencySketch frequencies; // guarded by 'this'
+    private final Map<String, Load> loads = new ConcurrentHashMap<>(); // entries being loaded (key -> its load)
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    // 'maximumBytes' - maximum (approximate) size of the cached entries
+    public ZnodeCache(ZooKeeper zooKeeper, long maximumBytes) {
+        if (maximumBytes <= 0) {
+            throw new IllegalArgumentException("Maximum size of the cache must be positive: " + maximumBytes);
+        }
+        this.zooKeeper = zooKeeper;
+        this.maximumBytes = maximumBytes;
+        this.frequencies = new FrequencySketch((int) Math.min(maximumBytes / AVERAGE_ENTRY_BYTES, 1 << 20));
+    }
+
+    // returns the data of the given znode (null if it doesn't exist)
+    // Note: the returned array is shared by all the readers of the entry, it must not be modified
+    public byte[] getData(String path) throws KeeperException, InterruptedException {
+        return (byte[]) get(DATA_KEY + path, path, false);
+    }
+
+    // returns the children of the given znode (null if it doesn't exist)
+    @SuppressWarnings("unchecked")
+    public List<String> getChildren(String path) throws KeeperException, InterruptedException {
+        return (List<String>) get(CHILDREN_KEY + path, path, true);
+    }
+
+    private Object get(String key, String path, boolean children) throws KeeperException, InterruptedException {
+        Entry entry;
+        synchronized (this) {
+            frequencies.increment(key);
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            hits.increment();
+            Metrics.count(HITS_METRIC);
+            return entry.value;
+        }
+        misses.increment();
+        Metrics.count(MISSES_METRIC);
+
+        Load load = new Load();
+        Load current;
+        while ((current = loads.putIfAbsent(key, load)) != null) {
+            Object value = current.await(); // the entry is being loaded already
+            if (value != Load.INTERRUPTED) {
+                return value;
+            } // else the loading thread has been interrupted, load it again
+        }
+        try {
+            Object value = load(key, path, children, load);
+            load.result.complete(value);
+            return value;
+        } catch (InterruptedException e) {
+            load.result.complete(Load.INTERRUPTED);
+            throw e;
+        } catch (KeeperException | RuntimeException e) {
+            load.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(key, load);
+        }
+    }
+
+    // read the znode along with its watch, and cache it unless it has changed in the meantime
+    private Object load(String key, String path, boolean children, Load load)
+            throws KeeperException, InterruptedException {
+        long startNanos = System.nanoTime();
+        Object value;
+        int size;
+        while (true) {
+            try {
+                if (children) {
+                    List<String> names = Collections.unmodifiableList(zooKeeper.getChildren(path, this));
+                    value = names;
+                    size = 0;
+                    for (String name : names) {
+                        size += 2 * name.length();
+                    }
+                } else {
+                    byte[] data = zooKeeper.getData(path, this, new Stat());
+                    value = data;
+                    size = data != null ? data.length : 0;
+                }
+                break;
+            } catch (KeeperException.NoNodeException e) {
+                // a read of a missing znode doesn't set a watch (unlike exists())
+                if (zooKeeper.exists(path, this) == null) {
+                    value = null;
+                    size = 0;
+                    break;
+                } // else created in the meantime, read it again
+            }
+        }
+        Metrics.record(LOAD_DURATION_METRIC, System.nanoTime() - startNanos);
+        put(key, new Entry(value, ENTRY_OVERHEAD_BYTES + 2 * key.length() + size), load);
+        return value;
+    }
+
+    private synchronized void put(String key, Entry entry, Load load) {
+        if (load.invalidated) {
+            return; // the znode has changed since it's been read
+        }
+        if (entry.bytes > maximumBytes) {
+            reject();
+            return;
+        }
+        // make room for the new entry, unless it's less frequently read than the entries it would evict
+        int frequency = frequencies.frequency(key);
+        long freedBytes = 0;
+        Iterator<Map.Entry<String, Entry>> victims = entries.entrySet().iterator();
+        while (bytes - freedBytes + entry.bytes > maximumBytes) {
+            Map.Entry<String, Entry> victim = victims.next();
+            if (frequencies.frequency(victim.getKey()) > frequency) {
+                reject();
+                return;
+            }
+            freedBytes += victim.getValue().bytes;
+        }
+        Iterator<Entry> evicted = entries.values().iterator();
+        while (freedBytes > 0) {
+            int evictedBytes = evicted.next().bytes;
+            evicted.remove();
+            freedBytes -= evictedBytes;
+            bytes -= evictedBytes;
+            evictions.increment();
+            Metrics.count(EVICTIONS_METRIC);
+        }
+        Entry previous = entries.put(key, entry);
+        bytes += entry.bytes - (previous != null ? previous.bytes : 0);
+    }
+
+    private void reject() {
+        Metrics.count(REJECTIONS_METRIC);
+    }
+
+    // drop the cached entry (and the one being loaded) of the given key
+    private synchronized void invalidate(String key) {
+        Load load = loads.get(key);
+        if (load != null) {
+            load.invalidated = true;
+        }
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.bytes;
+            invalidations.increment();
+            Metrics.count(INVALIDATIONS_METRIC);
+        }
+    }
+
+    // drop all the cached entries (e.g. their watches are gone along with an expired session)
+    public synchronized void clear() {
+        for (Load load : loads.values()) {
+            load.invalidated = true;
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            if (event.getState() == Event.KeeperState.Expired) {
+                clear();
+            }
+            return;
+        }
+        String path = event.getPath();
+        switch (event.getType()) {
+            case NodeDataChanged:
+                invalidate(DATA_KEY + path);
+                break;
+            case NodeChildrenChanged:
+                invalidate(CHILDREN_KEY + path);
+                break;
+            case NodeCreated:
+            case NodeDeleted:
+                invalidate(DATA_KEY + path);
+                invalidate(CHILDREN_KEY + path);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onSessionRecovered(ZooKeeper zooKeeper) {
+        this.zooKeeper = zooKeeper;
+        clear();
+        logger.info("Znode cache cleared on a new session");
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    // returns the ratio of the reads served from the cache (1 if nothing has been read yet)
+    public double getHitRate() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return total == 0 ? 1 : (double) hitCount / total;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    // a cached data (byte[]) or children (List<String>) of a znode (null if it doesn't exist)
+    private static final class Entry {
+        private final Object value;
+        private final int bytes;
+
+        Entry(Object value, int bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    // a read of a znode in progress, shared by the concurrent misses of its entry
+    private static final class Load {
+        private static final Object INTERRUPTED = new Object(); // result of a load whose thread has been interrupted
+
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private volatile boolean invalidated = false; // whether the znode has changed since it's been read
+
+        Object await() throws KeeperException, InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof KeeperException keeperException) {
+                    throw keeperException;
+                }
+                throw (RuntimeException) cause;
+            }
+        }
+    }
+
+    // approximate read frequencies of the keys: a count-min sketch of 4-bit counters, all halved periodically so that
+    // the frequencies decay (see TinyLFU)
+    private static final class FrequencySketch {
+        private static final int HASHES = 4;
+        private static final long[] SEEDS = {0x97cb3127L, 0xc2b2ae3dL, 0x85ebca6bL, 0x27d4eb2fL};
+
+        private final long[] table; // 16 counters per long
+        private final int sampleSize; // number of increments before the counters are halved
+        private int increments = 0;
+
+        FrequencySketch(int expectedEntries) {
+            int counters = Integer.highestOneBit(Math.max(expectedEntries, 64) - 1) << 1;
+            table = new long[counters / 16];
+            sampleSize = 10 * counters;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < HASHES; i++) {
+                int index = index(hash, i);
+                int offset = offset(hash, i);
+                if (((table[index] >>> offset) & 0xf) < 15) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++increments == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                increments /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < HASHES; i++) {
+                frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xf));
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return (int) ((h + (h >>> 32)) & (table.length - 1));
+        }
+
+        // offset of the i-th counter of the hash in its long (a distinct group of 4 counters per hash function)
+        private int offset(int hash, int i) {
+            return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package zk.classes;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JFR event of a Zookeeper operation (see Metrics.recordOperation())
+@Name("zk.Operation")
+@Label("ZooKeeper Operation")
+@Category("ZooKeeper")
+@Description("Latency of a ZooKeeper operation issued by the registry or the election")
+class ZooKeeperOperationEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Path")
+    String path;
+
+    @Label("Result Code")
+    int resultCode;
+
+    @Label("Elapsed Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}